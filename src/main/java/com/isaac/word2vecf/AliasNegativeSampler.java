@@ -0,0 +1,67 @@
+package com.isaac.word2vecf;
+
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+
+/**
+ * Walker's alias method, built with Vose's algorithm: O(|cv|) memory and build time, O(1) draws touching a single
+ * table entry. Each entry stores the acceptance threshold (scaled to 2^16) and the alias next to each other.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class AliasNegativeSampler implements NegativeSampler {
+	private static final int ONE = 1 << 16;
+
+	private final int size;
+	/** threshold of column k at 2 * k, alias of column k at 2 * k + 1 */
+	private final int[] table;
+
+	AliasNegativeSampler(FrozenVocabulary cv) {
+		this.size = cv.size();
+		this.table = new int[2 * size];
+		double[] scaled = new double[size];
+		double normalizer = 0;
+		for (int i = 0; i < size; i++) {
+			scaled[i] = Math.pow(cv.count(i), POWER);
+			normalizer += scaled[i];
+		}
+		// split the columns into those below and above the average probability
+		int[] small = new int[size];
+		int[] large = new int[size];
+		int numSmall = 0, numLarge = 0;
+		for (int i = 0; i < size; i++) {
+			scaled[i] = scaled[i] * size / normalizer;
+			if (scaled[i] < 1.0) small[numSmall++] = i;
+			else large[numLarge++] = i;
+		}
+		// fill each small column up with one large column
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			table[2 * s] = (int) (scaled[s] * ONE);
+			table[2 * s + 1] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0) small[numSmall++] = l;
+			else large[numLarge++] = l;
+		}
+		// the remaining columns are full, up to rounding errors
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			table[2 * l] = ONE;
+			table[2 * l + 1] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			table[2 * s] = ONE;
+			table[2 * s + 1] = s;
+		}
+	}
+
+	@Override
+	public int sample(long random) {
+		// column from the high 32 bits, coin from the next 16 bits, the low bits of the generator are weak
+		int column = (int) (((random >>> 32) * size) >>> 32);
+		return ((int) (random >>> 16) & 0xFFFF) < table[2 * column] ? column : table[2 * column + 1];
+	}
+}
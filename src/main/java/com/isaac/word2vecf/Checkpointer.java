@@ -0,0 +1,225 @@
+package com.isaac.word2vecf;
+
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes snapshots of the training state on a background thread while workers keep training, and restores the
+ * latest one. As the workers update the weights without locks, a snapshot taken in the middle of an iteration is
+ * a fuzzy copy, which is what a Hogwild run would have produced anyway.
+ *
+ * Snapshot layout (little endian): magic (int), version (int), layer size (int), word vocab size (int), context
+ * vocab size (int), inner nodes of the hierarchical softmax (int, 0 without it), completed iterations (int), actual
+ * word count (long), alpha (double), syn0, syn1neg, syn1 (floats)
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class Checkpointer {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(Checkpointer.class);
+
+	private static final int MAGIC = 0x57325643; // "W2VC"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 44;
+	private static final String PREFIX = "checkpoint-";
+	private static final String SUFFIX = ".w2vf";
+	/** number of snapshots kept in the directory */
+	private static final int KEEP = 2;
+	private static final ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+
+	/** State restored from a snapshot */
+	static class State {
+		final int completedIterations;
+		final long actualWordCount;
+		final double alpha;
+
+		State(int completedIterations, long actualWordCount, double alpha) {
+			this.completedIterations = completedIterations;
+			this.actualWordCount = actualWordCount;
+			this.alpha = alpha;
+		}
+	}
+
+	private final File directory;
+	private final FloatMatrix syn0;
+	private final FloatMatrix syn1neg;
+	/** inner node vectors of the hierarchical softmax, null without it */
+	private final FloatMatrix syn1;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "word2vecf-checkpoint");
+		t.setDaemon(true);
+		return t;
+	});
+	/** number of snapshots submitted and not written yet */
+	private final AtomicInteger writing = new AtomicInteger();
+	private volatile Future<?> pending;
+	private long sequence;
+
+	Checkpointer(String directory, FloatMatrix syn0, FloatMatrix syn1neg, FloatMatrix syn1) {
+		this.directory = new File(directory);
+		if (!this.directory.exists() && !this.directory.mkdirs())
+			throw new IllegalArgumentException("cannot create checkpoint directory " + directory);
+		this.syn0 = syn0;
+		this.syn1neg = syn1neg;
+		this.syn1 = syn1;
+		File[] files = snapshots(this.directory);
+		this.sequence = files.length == 0 ? 0 : sequenceOf(files[files.length - 1]) + 1;
+	}
+
+	/**
+	 * Start writing a periodic snapshot in the background, skipped if an earlier one is still being written since the
+	 * workers would only wait for it
+	 */
+	synchronized void trySnapshot(int completedIterations, long actualWordCount, double alpha) {
+		if (writing.get() == 0) snapshot(completedIterations, actualWordCount, alpha);
+	}
+
+	/**
+	 * Start writing a snapshot in the background, e.g. at the end of an iteration, queued after the one being written
+	 * so that it is never dropped
+	 */
+	synchronized void snapshot(int completedIterations, long actualWordCount, double alpha) {
+		writing.incrementAndGet();
+		final long seq = sequence++;
+		pending = writer.submit(() -> {
+			try {
+				write(seq, new State(completedIterations, actualWordCount, alpha));
+			} catch (IOException e) {
+				log.error("Error writing checkpoint", e);
+			} finally {
+				writing.decrementAndGet();
+			}
+		});
+	}
+
+	/** Wait for the snapshots queued, the writer runs them in order, then stop the background thread */
+	void close() throws InterruptedException {
+		Future<?> f = pending;
+		if (f != null) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				log.error("Error writing checkpoint", e.getCause());
+			}
+		}
+		writer.shutdown();
+	}
+
+	/** write to a temporary file first, so that a crash while writing never damages the latest snapshot */
+	private void write(long seq, State state) throws IOException {
+		File tmp = new File(directory, PREFIX + seq + SUFFIX + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			header.putInt(MAGIC).putInt(VERSION).putInt(syn0.columns()).putInt(syn0.rows()).putInt(syn1neg.rows())
+					.putInt(syn1 == null ? 0 : syn1.rows()).putInt(state.completedIterations).putLong(state.actualWordCount).putDouble(state.alpha);
+			header.flip();
+			while (header.hasRemaining()) channel.write(header);
+			writeMatrix(channel, syn0);
+			writeMatrix(channel, syn1neg);
+			if (syn1 != null) writeMatrix(channel, syn1);
+			channel.force(false);
+		}
+		File file = new File(directory, String.format("%s%d%s", PREFIX, seq, SUFFIX));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		File[] files = snapshots(directory);
+		for (int i = 0; i < files.length - KEEP; i++) Files.deleteIfExists(files[i].toPath());
+		log.info(String.format("Checkpoint %s written, iterations done: %d, words: %d, alpha: %.6f",
+				file.getName(), state.completedIterations, state.actualWordCount, state.alpha));
+	}
+
+	private static void writeMatrix(FileChannel channel, FloatMatrix matrix) throws IOException {
+		float[] row = new float[matrix.columns()];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1 << 20, row.length * Float.BYTES)).order(byteOrder);
+		FloatBuffer floats = buffer.asFloatBuffer();
+		for (int i = 0; i < matrix.rows(); i++) {
+			if (floats.remaining() < row.length) {
+				flush(channel, buffer, floats);
+				floats.clear();
+			}
+			matrix.getRow(i, row);
+			floats.put(row);
+		}
+		flush(channel, buffer, floats);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer, FloatBuffer floats) throws IOException {
+		buffer.clear();
+		buffer.limit(floats.position() * Float.BYTES);
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	/**
+	 * Restore the weights from the latest snapshot of the directory
+	 * @return {@link State} of the snapshot, null if the directory holds no snapshot
+	 */
+	static State restore(String directory, FloatMatrix syn0, FloatMatrix syn1neg, FloatMatrix syn1) throws IOException {
+		File[] files = snapshots(new File(directory));
+		if (files.length == 0) return null;
+		File file = files[files.length - 1];
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IllegalStateException(file + " is not a word2vecf checkpoint of version " + VERSION);
+			int layerSize = header.getInt(), wvSize = header.getInt(), cvSize = header.getInt(), innerNodes = header.getInt();
+			if (layerSize != syn0.columns() || wvSize != syn0.rows() || cvSize != syn1neg.rows() || innerNodes != (syn1 == null ? 0 : syn1.rows()))
+				throw new IllegalStateException(String.format("%s was written for layer size %d, vocabularies of %d words and %d contexts and %d inner nodes",
+						file, layerSize, wvSize, cvSize, innerNodes));
+			State state = new State(header.getInt(), header.getLong(), header.getDouble());
+			readMatrix(channel, syn0);
+			readMatrix(channel, syn1neg);
+			if (syn1 != null) readMatrix(channel, syn1);
+			log.info(String.format("Resumed from checkpoint %s, iterations done: %d, words: %d, alpha: %.6f",
+					file.getName(), state.completedIterations, state.actualWordCount, state.alpha));
+			return state;
+		}
+	}
+
+	private static void readMatrix(FileChannel channel, FloatMatrix matrix) throws IOException {
+		float[] row = new float[matrix.columns()];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(row.length * Float.BYTES).order(byteOrder);
+		for (int i = 0; i < matrix.rows(); i++) {
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) throw new EOFException("checkpoint is truncated");
+			}
+			buffer.flip();
+			buffer.asFloatBuffer().get(row);
+			matrix.putRow(i, row);
+		}
+	}
+
+	/** @return complete snapshots of the directory, oldest first */
+	private static File[] snapshots(File directory) {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null) return new File[0];
+		Arrays.sort(files, (a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+		return files;
+	}
+
+	private static long sequenceOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+}
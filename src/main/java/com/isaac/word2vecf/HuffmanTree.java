@@ -0,0 +1,102 @@
+package com.isaac.word2vecf;
+
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+
+import java.util.Arrays;
+
+/**
+ * Huffman tree over the context vocabulary for hierarchical softmax, built in O(|cv| log |cv|) with the two queues
+ * method of word2vec. The paths are stored flat: the path of context c occupies paths[offsets[c] .. offsets[c + 1]),
+ * root first, each entry holding the index of an inner node (a row of syn1) with the branch taken in its sign bit.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class HuffmanTree {
+	private static final int CODE_BIT = 0x80000000;
+
+	/** number of leaves (contexts), the tree has leaves - 1 inner nodes */
+	private final int leaves;
+	private final int[] offsets;
+	private final int[] paths;
+
+	HuffmanTree(FrozenVocabulary cv) {
+		this.leaves = cv.size();
+		final int n = leaves;
+		// leaves sorted by count, ascending: count in the high bits, id in the low bits
+		long[] sorted = new long[n];
+		for (int i = 0; i < n; i++) sorted[i] = (cv.count(i) << 32) | i;
+		Arrays.sort(sorted);
+		// nodes 0..n-1 are the sorted leaves, n..2n-2 the inner nodes in creation order, so both queues stay sorted
+		long[] count = new long[2 * n];
+		int[] parent = new int[2 * n];
+		boolean[] branch = new boolean[2 * n];
+		for (int i = 0; i < n; i++) count[i] = sorted[i] >>> 32;
+		int leaf = 0, inner = n;
+		for (int a = n; a < 2 * n - 1; a++) {
+			int min1 = leaf < n && (inner >= a || count[leaf] < count[inner]) ? leaf++ : inner++;
+			int min2 = leaf < n && (inner >= a || count[leaf] < count[inner]) ? leaf++ : inner++;
+			count[a] = count[min1] + count[min2];
+			parent[min1] = a;
+			parent[min2] = a;
+			branch[min2] = true;
+		}
+		// code lengths first, then fill the paths from the leaf up so they end up root first
+		this.offsets = new int[n + 1];
+		int[] depth = new int[n];
+		for (int i = 0; i < n; i++) {
+			int d = 0;
+			for (int node = i; node < 2 * n - 2; node = parent[node]) d++;
+			depth[(int) sorted[i]] = d;
+		}
+		for (int c = 0; c < n; c++) offsets[c + 1] = offsets[c] + depth[c];
+		this.paths = new int[offsets[n]];
+		for (int i = 0; i < n; i++) {
+			int c = (int) sorted[i];
+			int k = offsets[c + 1];
+			for (int node = i; node < 2 * n - 2; node = parent[node])
+				paths[--k] = (parent[node] - n) | (branch[node] ? CODE_BIT : 0);
+		}
+	}
+
+	/** @return number of inner nodes, i.e. rows of syn1 */
+	int innerNodes() {
+		return Math.max(leaves - 1, 1);
+	}
+
+	/** @return start of the path of the context in {@link #paths()} */
+	int start(int context) {
+		return offsets[context];
+	}
+
+	/** @return end (exclusive) of the path of the context in {@link #paths()} */
+	int end(int context) {
+		return offsets[context + 1];
+	}
+
+	/** @return flat paths of all contexts */
+	int[] paths() {
+		return paths;
+	}
+
+	/** @return inner node of a path entry */
+	static int node(int entry) {
+		return entry & ~CODE_BIT;
+	}
+
+	/** @return branch (0 or 1) of a path entry */
+	static int code(int entry) {
+		return entry >>> 31;
+	}
+
+	/** @return average path length weighted by the context counts */
+	double averageCodeLength(FrozenVocabulary cv) {
+		double total = 0, weighted = 0;
+		for (int c = 0; c < leaves; c++) {
+			total += cv.count(c);
+			weighted += (double) cv.count(c) * (end(c) - start(c));
+		}
+		return total == 0 ? 0 : weighted / total;
+	}
+}
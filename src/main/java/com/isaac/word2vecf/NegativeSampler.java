@@ -0,0 +1,16 @@
+package com.isaac.word2vecf;
+
+/**
+ * Draws negative contexts from the unigram distribution of the context vocabulary raised to 3/4.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+interface NegativeSampler {
+	/** Power applied to context counts */
+	double POWER = 0.75;
+
+	/** @return index of a context, drawn using the given random value of the worker */
+	int sample(long random);
+}
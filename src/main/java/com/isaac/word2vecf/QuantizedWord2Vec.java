@@ -0,0 +1,163 @@
+package com.isaac.word2vecf;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import com.isaac.word2vecf.search.ProductQuantizer;
+import com.isaac.word2vecf.search.TopK;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+import javafx.util.Pair;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.List;
+
+/**
+ * Word vectors compressed by a {@link ProductQuantizer}, one byte per subspace instead of four per dimension, for
+ * serving nearest neighbour queries from a fraction of the memory of a {@link Word2Vec}: 300 dimensions quantized to
+ * 50 subspaces take 24 times less. Queries are scored against the codes through a table of products per subspace and
+ * the best candidates may be re-ranked with the full precision vectors, which a model loaded by
+ * {@link com.isaac.word2vecf.utils.WordVectorSerializer#loadQuantizedModel(String)} maps from its file rather than
+ * loading them, so only the candidates' pages are read.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class QuantizedWord2Vec {
+	/** Default number of rows sampled to train the quantizer */
+	private static final int DEFAULT_SAMPLE_SIZE = 1 << 16;
+	/** Default number of k-means iterations */
+	private static final int DEFAULT_ITERATIONS = 20;
+
+	private final List<String> vocab;
+	/** hash index of the rows of vocab */
+	private final FrozenVocabulary index;
+	private final ProductQuantizer quantizer;
+	/** code of each row, quantizer.subspaces() bytes per row */
+	private final byte[] codes;
+	/** full precision vectors re-ranking the best candidates, null if not available */
+	private final FloatMatrix exactVectors;
+	private volatile int rerank;
+
+	public QuantizedWord2Vec (List<String> vocab, ProductQuantizer quantizer, byte[] codes, FloatMatrix exactVectors) {
+		Preconditions.checkArgument((long) vocab.size() * quantizer.subspaces() == codes.length, "one code is required per word");
+		Preconditions.checkArgument(exactVectors == null || (exactVectors.rows() == vocab.size() && exactVectors.columns() == quantizer.dimension()),
+				"exact vectors must hold one row per word");
+		this.vocab = vocab;
+		this.index = FrozenVocabulary.of(vocab);
+		this.quantizer = quantizer;
+		this.codes = codes;
+		this.exactVectors = exactVectors;
+	}
+
+	/** @return {@link QuantizedWord2Vec} of the words of the model, see {@link #quantize(List, INDArray, int, int, int)} */
+	public static QuantizedWord2Vec quantize (Word2Vec w2v, int subspaces) {
+		return quantize(w2v.getWordVocab(), w2v.getWordVectors(), subspaces, DEFAULT_SAMPLE_SIZE, DEFAULT_ITERATIONS);
+	}
+
+	/** @return {@link QuantizedWord2Vec} of the contexts of the model, see {@link #quantize(List, INDArray, int, int, int)} */
+	public static QuantizedWord2Vec quantizeContexts (Word2Vecf w2vf, int subspaces) {
+		return quantize(w2vf.getContextVocab(), w2vf.getContextVectors(), subspaces, DEFAULT_SAMPLE_SIZE, DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * Train a quantizer on the vectors and encode them; the quantized model keeps a full precision copy of the vectors
+	 * to re-rank and to save them with the codes, a replica serving the saved model does not load it
+	 * @param subspaces number of subspaces, bytes per word, which must divide the dimension of the vectors
+	 * @param sampleSize number of vectors sampled to train the quantizer
+	 * @param iterations number of k-means iterations
+	 * @return {@link QuantizedWord2Vec}
+	 */
+	public static QuantizedWord2Vec quantize (List<String> vocab, INDArray vectors, int subspaces, int sampleSize, int iterations) {
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		FloatMatrix exact = FloatMatrix.of(vectors, false);
+		ProductQuantizer quantizer = ProductQuantizer.train(exact, subspaces, sampleSize, iterations, numThreads, 1L);
+		return new QuantizedWord2Vec(vocab, quantizer, quantizer.encode(exact, numThreads), exact);
+	}
+
+	/** @return layerSize */
+	public int dimension () { return quantizer.dimension(); }
+
+	/** @return vocabulary size */
+	public int vocabSize () { return vocab.size(); }
+
+	/** @return true if it is contained in the vocabulary, false if not */
+	public boolean hasWord (String str) { return index.indexOf(str) >= 0; }
+
+	/** @return the index of given word in the vocabulary, -1 not found */
+	public int wordIndexOf (String word) { return index.indexOf(word); }
+
+	/** @return vector of the word, full precision if available and decoded from its code if not; full-zero vector if not contained */
+	public INDArray getWordVector (String str) {
+		int i = index.indexOf(str);
+		if (i < 0) return Nd4j.zeros(1, dimension());
+		return Nd4j.create(vector(i));
+	}
+
+	/** @return number of best candidates of the codes re-ranked with the full precision vectors, 0 if not re-ranked */
+	public int getRerank () { return rerank; }
+
+	/** Set the number of best candidates of the codes re-ranked with the full precision vectors, 0 to disable it */
+	public QuantizedWord2Vec setRerank (int candidates) {
+		Preconditions.checkArgument(candidates >= 0, "number of re-ranked candidates must be non-negative");
+		Preconditions.checkState(candidates == 0 || exactVectors != null, "no full precision vectors to re-rank with");
+		this.rerank = candidates;
+		return this;
+	}
+
+	/** @return list of nearest {@link Pair} of given word, size num, each {@link Pair} contains result word and its approximate cosine score */
+	public List<Pair<String, Double>> wordsNearest (String word, Integer top) {
+		return wordsNearest(getWordVector(word), top);
+	}
+
+	/** @return list of nearest {@link Pair} of given vector, size num, each {@link Pair} contains result word and its approximate cosine score */
+	public List<Pair<String, Double>> wordsNearest (INDArray word, Integer top) {
+		top = MoreObjects.firstNonNull(top, 10); // set default value: 10
+		return Word2Vec.pairs(wordsNearestTopK(word, new TopK(top)), vocab);
+	}
+
+	/** @return result, reset and filled with the ids and scores of the result.k() nearest words of given word */
+	public TopK wordsNearestTopK (String word, TopK result) {
+		return wordsNearestTopK(getWordVector(word), result);
+	}
+
+	/**
+	 * Score every code by asymmetric distance computation, then re-rank the best {@link #getRerank()} candidates with
+	 * the full precision vectors if set, whose scores are then exact
+	 * @return result, reset and filled with the ids and scores of the result.k() nearest words of given vector
+	 */
+	public TopK wordsNearestTopK (INDArray word, TopK result) {
+		Preconditions.checkArgument(word.length() == dimension(), String.format("vector's dimension(%d) must be the same as layer size(%d)", word.length(), dimension()));
+		float[] query = word.dup('c').data().asFloat();
+		float[] table = quantizer.innerProductTable(query, new float[quantizer.subspaces() * quantizer.centroids()]);
+		int candidates = rerank;
+		int subspaces = quantizer.subspaces();
+		TopK scan = candidates > 0 ? new TopK(Math.max(candidates, result.k())) : result.reset(result.k());
+		for (int i = 0, offset = 0; i < vocab.size(); i++, offset += subspaces) scan.offer(i, quantizer.score(table, codes, offset));
+		if (candidates == 0) return result;
+		result.reset(result.k());
+		for (int i = 0; i < scan.size(); i++) result.offer(scan.id(i), exactVectors.dot(scan.id(i), query));
+		return result;
+	}
+
+	/** @return vector of row i, full precision if available and decoded if not */
+	private float[] vector(int i) {
+		float[] vector = new float[dimension()];
+		if (exactVectors != null) exactVectors.getRow(i, vector);
+		else quantizer.decode(codes, i * quantizer.subspaces(), vector);
+		return vector;
+	}
+
+	/** @return size of the codes and codebooks in bytes, the full precision vectors and the vocabulary excluded */
+	public long sizeInBytes () { return codes.length + (long) quantizer.codebooks().length * Float.BYTES; }
+
+	public List<String> getVocab () { return vocab; }
+
+	public ProductQuantizer getQuantizer () { return quantizer; }
+
+	public byte[] getCodes () { return codes; }
+
+	/** @return full precision vectors, null if not available */
+	public FloatMatrix getExactVectors () { return exactVectors; }
+}
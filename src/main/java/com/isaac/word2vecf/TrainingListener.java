@@ -0,0 +1,13 @@
+package com.isaac.word2vecf;
+
+/**
+ * Receives the progress of a running {@link Word2VecfTrainer}, called from the reporting thread at every report
+ * interval and once more when training finishes.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public interface TrainingListener {
+	void onProgress(TrainingMetrics metrics);
+}
@@ -0,0 +1,78 @@
+package com.isaac.word2vecf;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of the progress of a training run.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class TrainingMetrics {
+	/** current iteration (1-based) and total number of iterations */
+	private final int iteration;
+	private final int iterations;
+	/** current learning rate */
+	private final double alpha;
+	/** fraction of the whole run and of the current iteration done */
+	private final double progress;
+	private final double epochProgress;
+	/** pairs processed in this run, and those of them discarded by down sampling */
+	private final long pairs;
+	private final long droppedPairs;
+	/** processing rate since the last report, all threads and per trainer thread */
+	private final double pairsPerSecond;
+	private final double[] pairsPerSecondPerThread;
+	private final long elapsedSeconds;
+	/** estimated seconds left, -1 if unknown */
+	private final long etaSeconds;
+
+	TrainingMetrics(int iteration, int iterations, double alpha, double progress, double epochProgress, long pairs, long droppedPairs,
+					double pairsPerSecond, double[] pairsPerSecondPerThread, long elapsedSeconds, long etaSeconds) {
+		this.iteration = iteration;
+		this.iterations = iterations;
+		this.alpha = alpha;
+		this.progress = progress;
+		this.epochProgress = epochProgress;
+		this.pairs = pairs;
+		this.droppedPairs = droppedPairs;
+		this.pairsPerSecond = pairsPerSecond;
+		this.pairsPerSecondPerThread = pairsPerSecondPerThread;
+		this.elapsedSeconds = elapsedSeconds;
+		this.etaSeconds = etaSeconds;
+	}
+
+	public int getIteration() { return iteration; }
+
+	public int getIterations() { return iterations; }
+
+	public double getAlpha() { return alpha; }
+
+	public double getProgress() { return progress; }
+
+	public double getEpochProgress() { return epochProgress; }
+
+	public long getPairs() { return pairs; }
+
+	public long getDroppedPairs() { return droppedPairs; }
+
+	public double getPairsPerSecond() { return pairsPerSecond; }
+
+	public double[] getPairsPerSecondPerThread() { return pairsPerSecondPerThread.clone(); }
+
+	public long getElapsedSeconds() { return elapsedSeconds; }
+
+	public long getEtaSeconds() { return etaSeconds; }
+
+	@Override
+	public String toString() {
+		return String.format("Iteration: %d/%d, Alpha: %.6f, Progress: %.2f%% (iteration %.2f%%), Pairs/sec: %.0f, Dropped: %d, Elapsed: %ds, ETA: %ds",
+				iteration, iterations, alpha, progress * 100, epochProgress * 100, pairsPerSecond, droppedPairs, elapsedSeconds, etaSeconds);
+	}
+
+	/** @return per thread rates as a string */
+	public String threadRates() {
+		return Arrays.toString(Arrays.stream(pairsPerSecondPerThread).mapToLong(Math::round).toArray());
+	}
+}
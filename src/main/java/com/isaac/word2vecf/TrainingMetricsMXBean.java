@@ -0,0 +1,23 @@
+package com.isaac.word2vecf;
+
+/**
+ * JMX view of the latest {@link TrainingMetrics} of a running trainer, registered as
+ * "com.isaac.word2vecf:type=Word2VecfTrainer,name=&lt;n&gt;".
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public interface TrainingMetricsMXBean {
+	int getIteration();
+	int getIterations();
+	double getAlpha();
+	double getProgress();
+	double getEpochProgress();
+	long getPairs();
+	long getDroppedPairs();
+	double getPairsPerSecond();
+	double[] getPairsPerSecondPerThread();
+	long getElapsedSeconds();
+	long getEtaSeconds();
+}
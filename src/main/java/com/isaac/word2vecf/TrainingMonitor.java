@@ -0,0 +1,171 @@
+package com.isaac.word2vecf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the counters of the worker threads and reports {@link TrainingMetrics} periodically to the listeners, the
+ * log (debug mode > 0) and JMX. Counters are striped per worker: each worker owns one padded slot which only it
+ * writes, so counting adds no contention and no false sharing; the reporting thread only reads them.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class TrainingMonitor implements TrainingMetricsMXBean {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(TrainingMonitor.class);
+
+	/** longs between two stripes, 128 bytes keep adjacent stripes off each other's cache lines */
+	private static final int STRIDE = 16;
+	private static final int PAIRS = 0;
+	private static final int DROPPED = 1;
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final int numThreads;
+	private final int iterations;
+	/** total number of pairs of the whole run, used for progress and ETA */
+	private final double totalWords;
+	private final AtomicLongArray stripes;
+	private final Word2VecfConfigs config;
+	private final List<TrainingListener> listeners;
+	private final ScheduledExecutorService reporter;
+	private final ObjectName name;
+
+	/** state of the trainer, set by the training thread */
+	private volatile int iteration;
+	private volatile long epochStartPairs;
+	private final long startNanos = System.nanoTime();
+	/** totals at the previous report, only touched by the reporting thread */
+	private long lastNanos = startNanos;
+	private final long[] lastPairs;
+	private volatile TrainingMetrics latest;
+
+	/** suppliers of the current alpha and word count of the trainer */
+	interface TrainerState {
+		double alpha();
+		long actualWordCount();
+	}
+	private final TrainerState state;
+
+	TrainingMonitor(Word2VecfConfigs config, double wordsPerIteration, TrainerState state) {
+		this.config = config;
+		this.numThreads = config.numThreads;
+		this.iterations = config.iterations;
+		this.totalWords = wordsPerIteration * config.iterations;
+		this.stripes = new AtomicLongArray(numThreads * STRIDE);
+		this.lastPairs = new long[numThreads];
+		this.listeners = config.listeners;
+		this.state = state;
+		this.latest = new TrainingMetrics(0, iterations, state.alpha(), 0, 0, 0, 0, 0, new double[numThreads], 0, -1);
+		this.name = config.jmx ? register() : null;
+		this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "word2vecf-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		reporter.scheduleAtFixedRate(this::report, config.reportInterval, config.reportInterval, TimeUnit.SECONDS);
+	}
+
+	private ObjectName register() {
+		try {
+			ObjectName objectName = new ObjectName("com.isaac.word2vecf:type=Word2VecfTrainer,name=" + instances.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		} catch (JMException e) {
+			log.warn("Unable to register training metrics MBean: " + e);
+			return null;
+		}
+	}
+
+	/** Count pairs processed and dropped by down sampling of the worker, called by the owner of the stripe only */
+	void add(int worker, long pairs, long dropped) {
+		int base = worker * STRIDE;
+		stripes.lazySet(base + PAIRS, stripes.get(base + PAIRS) + pairs);
+		stripes.lazySet(base + DROPPED, stripes.get(base + DROPPED) + dropped);
+	}
+
+	/** Called by the training thread when an iteration (1-based) starts */
+	void startIteration(int iteration) {
+		this.epochStartPairs = totalPairs();
+		this.iteration = iteration;
+	}
+
+	private long totalPairs() {
+		long total = 0;
+		for (int i = 0; i < numThreads; i++) total += stripes.get(i * STRIDE + PAIRS);
+		return total;
+	}
+
+	/** compute a snapshot and publish it */
+	private synchronized void report() {
+		try {
+			long now = System.nanoTime();
+			double seconds = Math.max((now - lastNanos) / 1e9, 1e-9);
+			long pairs = 0, dropped = 0;
+			double[] rates = new double[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				long p = stripes.get(i * STRIDE + PAIRS);
+				rates[i] = (p - lastPairs[i]) / seconds;
+				lastPairs[i] = p;
+				pairs += p;
+				dropped += stripes.get(i * STRIDE + DROPPED);
+			}
+			lastNanos = now;
+			double rate = 0;
+			for (double r : rates) rate += r;
+			double words = state.actualWordCount();
+			double progress = totalWords > 0 ? Math.min(words / totalWords, 1) : 0;
+			double epochProgress = totalWords > 0 ? Math.min((pairs - epochStartPairs) / (totalWords / iterations), 1) : 0;
+			long eta = rate > 0 ? (long) (Math.max(totalWords - words, 0) / rate) : -1;
+			TrainingMetrics metrics = new TrainingMetrics(iteration, iterations, state.alpha(), progress, epochProgress, pairs, dropped,
+					rate, rates, (now - startNanos) / 1_000_000_000L, eta);
+			latest = metrics;
+			if (config.debugMode > 0) log.info(metrics.toString());
+			if (config.debugMode > 1) log.info("Pairs/sec per thread: " + metrics.threadRates());
+			for (TrainingListener listener : listeners) listener.onProgress(metrics);
+		} catch (RuntimeException e) {
+			log.error("Error reporting training metrics", e); // never let an exception cancel the schedule
+		}
+	}
+
+	/** Publish the final report, stop reporting and unregister from JMX */
+	void close() {
+		reporter.shutdownNow();
+		report();
+		if (name != null) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+			} catch (JMException e) {
+				log.warn("Unable to unregister training metrics MBean: " + e);
+			}
+		}
+	}
+
+	/** @return latest {@link TrainingMetrics} */
+	TrainingMetrics latest() { return latest; }
+
+	@Override public int getIteration() { return latest.getIteration(); }
+	@Override public int getIterations() { return latest.getIterations(); }
+	@Override public double getAlpha() { return latest.getAlpha(); }
+	@Override public double getProgress() { return latest.getProgress(); }
+	@Override public double getEpochProgress() { return latest.getEpochProgress(); }
+	@Override public long getPairs() { return latest.getPairs(); }
+	@Override public long getDroppedPairs() { return latest.getDroppedPairs(); }
+	@Override public double getPairsPerSecond() { return latest.getPairsPerSecond(); }
+	@Override public double[] getPairsPerSecondPerThread() { return latest.getPairsPerSecondPerThread(); }
+	@Override public long getElapsedSeconds() { return latest.getElapsedSeconds(); }
+	@Override public long getEtaSeconds() { return latest.getEtaSeconds(); }
+}
@@ -0,0 +1,44 @@
+package com.isaac.word2vecf;
+
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+
+/**
+ * The unigram table of the original word2vecf, kept to reproduce its results. Each context occupies a number of
+ * slots of a 1e8 entries table proportional to its probability.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class UnigramTableSampler implements NegativeSampler {
+	/** define the table size */
+	private static final int TABLE_SIZE = (int) 1e8;
+
+	private final int vocabSize;
+	private final int[] unitable = new int[TABLE_SIZE];
+
+	UnigramTableSampler(FrozenVocabulary cv) {
+		this.vocabSize = cv.size();
+		long normalizer = 0;
+		for (int c = 0; c < vocabSize; c++)
+			normalizer += Math.pow(cv.count(c), POWER);
+		int i = 0;
+		double d1 = Math.pow(cv.count(i), POWER) / normalizer;
+		for (int a = 0; a < TABLE_SIZE; a++) {
+			unitable[a] = i;
+			if (a / (double) TABLE_SIZE > d1) {
+				i++;
+				d1 += Math.pow(cv.count(i), POWER) / normalizer;
+			}
+			if (i >= vocabSize) i = vocabSize - 1;
+		}
+	}
+
+	@Override
+	public int sample(long random) {
+		int target = unitable[(int) (((random >> 16) % TABLE_SIZE) + TABLE_SIZE) % TABLE_SIZE];
+		if (target == 0)
+			target = (int) (((random % (vocabSize - 1)) + vocabSize - 1) % (vocabSize - 1)) + 1;
+		return target;
+	}
+}
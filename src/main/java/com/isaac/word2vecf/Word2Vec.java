@@ -2,14 +2,17 @@ package com.isaac.word2vecf;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.search.HnswIndex;
+import com.isaac.word2vecf.search.TopK;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
 import javafx.util.Pair;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Created by zhanghao on 5/6/17.
@@ -19,13 +22,24 @@ import java.util.stream.Collectors;
  */
 @SuppressWarnings("all")
 public class Word2Vec {
+	/** Scores computed at once by the batched search, vocabulary rows of a tile times queries */
+	private static final int TILE_SCORES = 1 << 22;
+
 	final int layerSize;
 	final List<String> wordVocab;
+	/** hash index of the rows of wordVocab, built once with the model */
+	final FrozenVocabulary wordIndex;
 	final INDArray wordVectors;
+	/** true if the rows of the vectors were normalized by the model */
+	final boolean normalized;
+	/** approximate nearest neighbour graph of the word vectors, searched instead of scanning them once set */
+	private volatile HnswIndex wordGraph;
 
 	public Word2Vec (int layerSize, List<String> wordVocab, INDArray wordVectors, boolean normalize) {
 		this.layerSize = layerSize;
 		this.wordVocab = wordVocab;
+		this.wordIndex = FrozenVocabulary.of(wordVocab);
+		this.normalized = normalize;
 		if (normalize) this.wordVectors = normalize(wordVectors);
 		else this.wordVectors = wordVectors;
 	}
@@ -42,11 +56,14 @@ public class Word2Vec {
 
 	/** @return true if it is contained in word vocabulary, false if not */
 	public boolean hasWord (String str) {
-		return wordVocab.contains(str);
+		return wordIndex.indexOf(str) >= 0;
 	}
 
 	/** @return {@link INDArray} vector if it is contained in word vocabulary, full-zero vector if not */
-	public INDArray getWordVector (String str) { return hasWord(str) ? wordVectors.getRow(wordVocab.indexOf(str)) : zeros(); }
+	public INDArray getWordVector (String str) {
+		int index = wordIndex.indexOf(str);
+		return index >= 0 ? wordVectors.getRow(index) : zeros();
+	}
 
 	/** @return mean vector, built from words passed in */
 	public INDArray getWordVectorMean (List<String> words) {
@@ -58,7 +75,7 @@ public class Word2Vec {
 
 	/** @return the index of given word in word vocabulary, -1 nor found */
 	public int wordIndexOf (String word) {
-		return wordVocab.indexOf(word);
+		return wordIndex.indexOf(word);
 	}
 
 	/** @return cosine similarity between two given words */
@@ -80,11 +97,63 @@ public class Word2Vec {
 	/** @return list of nearest {@link Pair} of given word, size num, each {@link Pair} contains result word and it cosine score */
 	public List<Pair<String, Double>> wordsNearest (INDArray word, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10); // set default value: 10
-		INDArray res = wordSimilarity(word);
-		List<Pair<String, Double>> list = new ArrayList<>(wordVocab.size());
-		for (int i = 0; i < wordVocab.size(); i++) { list.add(new Pair<>(wordVocab.get(i), res.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue())))
-				.limit(top).collect(Collectors.toCollection(LinkedList::new));
+		return pairs(wordsNearestTopK(word, new TopK(top)), wordVocab);
+	}
+
+	/** @return result, reset and filled with the ids and cosine scores of the result.k() nearest words of given word */
+	public TopK wordsNearestTopK (String word, TopK result) {
+		return wordsNearestTopK(getWordVector(word), result);
+	}
+
+	/**
+	 * @return result, reset and filled with the ids and cosine scores of the result.k() nearest words of given vector,
+	 * approximate if a word graph is used
+	 */
+	public TopK wordsNearestTopK (INDArray word, TopK result) {
+		HnswIndex graph = wordGraph;
+		if (graph == null) return wordsNearestExact(word, result);
+		Preconditions.checkArgument(word.columns() == layerSize, String.format("vector's dimension(%d) must be the same as layer size(%d)", word.columns(), layerSize));
+		return graph.search(word, result);
+	}
+
+	/** @return result, reset and filled with the ids and cosine scores of the result.k() nearest words of given vector, scanning all of them */
+	public TopK wordsNearestExact (INDArray word, TopK result) {
+		return result.reset(result.k()).offerAll(wordSimilarity(word));
+	}
+
+	/**
+	 * Build the approximate nearest neighbour graph of the word vectors and use it for the nearest words queries
+	 * @param m number of links per word, memory grows with it, 16 is a good start
+	 * @param efConstruction number of candidates explored to link a word, 200 is a good start
+	 * @return the graph, to tune its efSearch or to save it next to the model
+	 */
+	public HnswIndex buildWordGraph (int m, int efConstruction) {
+		HnswIndex graph = HnswIndex.build(wordVectors, normalized, m, efConstruction, Runtime.getRuntime().availableProcessors(), 1L);
+		useWordGraph(graph);
+		return graph;
+	}
+
+	/** Use given graph of the word vectors for the nearest words queries, e.g. loaded next to the model, null to scan again */
+	public Word2Vec useWordGraph (HnswIndex graph) {
+		checkGraph(graph, wordVectors);
+		this.wordGraph = graph;
+		return this;
+	}
+
+	/** Load the graph of the word vectors saved by {@link HnswIndex#save(String)} and use it for the nearest words queries */
+	public HnswIndex loadWordGraph (String file) throws IOException {
+		HnswIndex graph = HnswIndex.load(file, wordVectors, normalized);
+		useWordGraph(graph);
+		return graph;
+	}
+
+	/** @return graph of the word vectors used by the nearest words queries, null if they scan all the words */
+	public HnswIndex getWordGraph () { return wordGraph; }
+
+	/** @return recall of the word graph on the k nearest words of the queries, the fraction of the exact results it finds */
+	public double wordGraphRecall (INDArray queries, int k) {
+		Preconditions.checkState(wordGraph != null, "no word graph is used");
+		return wordGraph.recall(queries, wordsNearestBatch(queries, topK(queries.rows(), k)));
 	}
 
 	/**
@@ -96,15 +165,83 @@ public class Word2Vec {
 	 */
 	public List<String> wordsNearest (List<String> positive, List<String> negative, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10); // set default value: 10
+		return wordsNearestTopK(positive, negative, new TopK(top)).labels(wordVocab);
+	}
+
+	/** @return result, reset and filled with the ids and scores of the result.k() answers of the analogy task above */
+	public TopK wordsNearestTopK (List<String> positive, List<String> negative, TopK result) {
 		INDArray pos = zeros();
 		INDArray neg = zeros();
 		for (String str : positive) { pos.addiRowVector(getWordVector(str)); }
 		for (String str : negative) { neg.addiRowVector(getWordVector(str)); }
-		INDArray res = wordSimilarity(pos.sub(neg));
-		List<Pair<String, Double>> list = new ArrayList<>(wordVocab.size());
-		for (int i = 0; i < wordVocab.size(); i++) { list.add(new Pair<>(wordVocab.get(i), res.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue())))
-				.limit(top).map(Pair::getKey).collect(Collectors.toCollection(LinkedList::new));
+		return wordsNearestTopK(pos.sub(neg), result);
+	}
+
+	/**
+	 * Nearest words of a batch of queries, scored by one matrix product per tile of the word vectors so that the
+	 * vectors are read once for the whole batch rather than once per query
+	 * @param queries one query vector per row
+	 * @param results one selection per query, reset and filled with the ids and cosine scores of its result.k() nearest words
+	 * @return results
+	 */
+	public TopK[] wordsNearestBatch (INDArray queries, TopK[] results) {
+		return nearestBatch(wordVectors, queries, results);
+	}
+
+	/** @return lists of nearest {@link Pair} of each given word, as {@link #wordsNearest(String, Integer)} */
+	public List<List<Pair<String, Double>>> wordsNearestBatch (List<String> words, Integer top) {
+		top = MoreObjects.firstNonNull(top, 10); // set default value: 10
+		if (words.isEmpty()) return new ArrayList<>();
+		INDArray queries = Nd4j.create(words.size(), layerSize);
+		for (int i = 0; i < words.size(); i++) queries.putRow(i, getWordVector(words.get(i)));
+		return pairs(wordsNearestBatch(queries, topK(words.size(), top)), wordVocab);
+	}
+
+	/** @return results, filled with the top scores of the products of the rows of vectors and queries */
+	static TopK[] nearestBatch (INDArray vectors, INDArray queries, TopK[] results) {
+		Preconditions.checkArgument(queries.columns() == vectors.columns(), String.format("queries' dimension(%d) must be the same as layer size(%d)", queries.columns(), vectors.columns()));
+		Preconditions.checkArgument(results.length == queries.rows(), "one result is required per query");
+		for (TopK result : results) result.reset(result.k());
+		int numQueries = results.length;
+		if (numQueries == 0) return results;
+		INDArray transposed = queries.transpose();
+		int tileRows = Math.max(1, TILE_SCORES / numQueries);
+		for (int start = 0; start < vectors.rows(); start += tileRows) {
+			int end = Math.min(vectors.rows(), start + tileRows);
+			// tile rows x queries scores, copied in row major order to read them without index arithmetic per element
+			float[] scores = vectors.get(NDArrayIndex.interval(start, end), NDArrayIndex.all()).mmul(transposed).dup('c').data().asFloat();
+			for (int i = 0, offset = 0; i < end - start; i++, offset += numQueries)
+				for (int q = 0; q < numQueries; q++) results[q].offer(start + i, scores[offset + q]);
+		}
+		return results;
+	}
+
+	/** check that graph indexes given vectors */
+	static void checkGraph (HnswIndex graph, INDArray vectors) {
+		if (graph == null) return;
+		Preconditions.checkArgument(graph.size() == vectors.rows() && graph.dimension() == vectors.columns(),
+				String.format("graph of %d x %d vectors does not index %d x %d vectors", graph.size(), graph.dimension(), vectors.rows(), vectors.columns()));
+	}
+
+	/** @return count selections of k entries */
+	static TopK[] topK (int count, int k) {
+		TopK[] results = new TopK[count];
+		for (int i = 0; i < count; i++) results[i] = new TopK(k);
+		return results;
+	}
+
+	/** @return lists of {@link Pair} of the label and score of each entry of the selections */
+	static List<List<Pair<String, Double>>> pairs (TopK[] tops, List<String> vocab) {
+		List<List<Pair<String, Double>>> lists = new ArrayList<>(tops.length);
+		for (TopK top : tops) lists.add(pairs(top, vocab));
+		return lists;
+	}
+
+	/** @return {@link Pair} of the label and score of each entry of the selection, best first */
+	static List<Pair<String, Double>> pairs (TopK top, List<String> vocab) {
+		List<Pair<String, Double>> list = new ArrayList<>(top.size());
+		for (int i = 0; i < top.size(); i++) list.add(new Pair<>(vocab.get(top.id(i)), (double) top.score(i)));
+		return list;
 	}
 
 	/** @return {@link INDArray} */
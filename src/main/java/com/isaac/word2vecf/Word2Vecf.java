@@ -2,15 +2,17 @@ package com.isaac.word2vecf;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.search.HnswIndex;
+import com.isaac.word2vecf.search.TopK;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
 import javafx.util.Pair;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.ops.transforms.Transforms;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Created by zhanghao on 18/4/17.
@@ -22,11 +24,16 @@ import java.util.stream.Collectors;
 public class Word2Vecf extends Word2Vec {
 
 	private final List<String> contextVocab;
+	/** hash index of the rows of contextVocab, built once with the model */
+	private final FrozenVocabulary contextIndex;
 	private final INDArray contextVectors;
+	/** approximate nearest neighbour graph of the context vectors, searched instead of scanning them once set */
+	private volatile HnswIndex contextGraph;
 
 	public Word2Vecf (int layerSize, List<String> wordVocab, INDArray wordVectors, List<String> contextVocab, INDArray contextVectors, boolean normalize) {
 		super(layerSize, wordVocab, wordVectors, normalize);
 		this.contextVocab = contextVocab;
+		this.contextIndex = FrozenVocabulary.of(contextVocab);
 		if (normalize) this.contextVectors = normalize(contextVectors);
 		else this.contextVectors = contextVectors;
 	}
@@ -38,11 +45,14 @@ public class Word2Vecf extends Word2Vec {
 
 	/** @return true if it is contained in context vocabulary, false if not or context vocabulary is null */
 	public boolean hasContext (String str) {
-		return contextVocab.contains(str);
+		return contextIndex.indexOf(str) >= 0;
 	}
 
 	/** @return {@link INDArray} vector if it is contained in context vocabulary, full-zero vector if not or context vocabulary is null */
-	public INDArray getContextVector (String str) { return hasContext(str) ? contextVectors.getRow(contextVocab.indexOf(str)) : zeros(); }
+	public INDArray getContextVector (String str) {
+		int index = contextIndex.indexOf(str);
+		return index >= 0 ? contextVectors.getRow(index) : zeros();
+	}
 
 	/** @return mean vector, built from contexts passed in */
 	public INDArray getContextVectorMean (List<String> contexts) {
@@ -53,7 +63,7 @@ public class Word2Vecf extends Word2Vec {
 	}
 
 	/** @return the index of given context in context vocabulary, -1 not found or context vocabulary does not exist */
-	public int contextIndexOf (String context) { return contextVocab.indexOf(context); }
+	public int contextIndexOf (String context) { return contextIndex.indexOf(context); }
 
 	/** @return cosine similarity between two given contexts */
 	public double contextSimilarity (String context1, String context2) {
@@ -91,10 +101,82 @@ public class Word2Vecf extends Word2Vec {
 	/** @return list of nearest {@link Pair} of given context, size num, each {@link Pair} contains result context and it cosine score */
 	public List<Pair<String, Double>> contextsNearest (INDArray context, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10);
-		INDArray res = contextSimilarity(context);
-		List<Pair<String, Double>> list = new ArrayList<>(contextVocab.size());
-		for (int i = 0; i < contextVocab.size(); i++) { list.add(new Pair<>(contextVocab.get(i), res.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue()))).limit(top).collect(Collectors.toCollection(LinkedList::new));
+		return pairs(contextsNearestTopK(context, new TopK(top)), contextVocab);
+	}
+
+	/** @return result, reset and filled with the ids and cosine scores of the result.k() nearest contexts of given context */
+	public TopK contextsNearestTopK (String context, TopK result) {
+		return contextsNearestTopK(getContextVector(context), result);
+	}
+
+	/**
+	 * @return result, reset and filled with the ids and cosine scores of the result.k() nearest contexts of given vector,
+	 * approximate if a context graph is used
+	 */
+	public TopK contextsNearestTopK (INDArray context, TopK result) {
+		HnswIndex graph = contextGraph;
+		if (graph == null) return contextsNearestExact(context, result);
+		Preconditions.checkArgument(context.columns() == layerSize, String.format("vector's dimension(%d) must be the same as layer size(%d)", context.columns(), layerSize));
+		return graph.search(context, result);
+	}
+
+	/** @return result, reset and filled with the ids and cosine scores of the result.k() nearest contexts of given vector, scanning all of them */
+	public TopK contextsNearestExact (INDArray context, TopK result) {
+		return result.reset(result.k()).offerAll(contextSimilarity(context));
+	}
+
+	/**
+	 * Build the approximate nearest neighbour graph of the context vectors and use it for the nearest contexts queries
+	 * @param m number of links per context, memory grows with it, 16 is a good start
+	 * @param efConstruction number of candidates explored to link a context, 200 is a good start
+	 * @return the graph, to tune its efSearch or to save it next to the model
+	 */
+	public HnswIndex buildContextGraph (int m, int efConstruction) {
+		HnswIndex graph = HnswIndex.build(contextVectors, normalized, m, efConstruction, Runtime.getRuntime().availableProcessors(), 1L);
+		useContextGraph(graph);
+		return graph;
+	}
+
+	/** Use given graph of the context vectors for the nearest contexts queries, e.g. loaded next to the model, null to scan again */
+	public Word2Vecf useContextGraph (HnswIndex graph) {
+		checkGraph(graph, contextVectors);
+		this.contextGraph = graph;
+		return this;
+	}
+
+	/** Load the graph of the context vectors saved by {@link HnswIndex#save(String)} and use it for the nearest contexts queries */
+	public HnswIndex loadContextGraph (String file) throws IOException {
+		HnswIndex graph = HnswIndex.load(file, contextVectors, normalized);
+		useContextGraph(graph);
+		return graph;
+	}
+
+	/** @return graph of the context vectors used by the nearest contexts queries, null if they scan all the contexts */
+	public HnswIndex getContextGraph () { return contextGraph; }
+
+	/** @return recall of the context graph on the k nearest contexts of the queries, the fraction of the exact results it finds */
+	public double contextGraphRecall (INDArray queries, int k) {
+		Preconditions.checkState(contextGraph != null, "no context graph is used");
+		return contextGraph.recall(queries, contextsNearestBatch(queries, topK(queries.rows(), k)));
+	}
+
+	/**
+	 * Nearest contexts of a batch of queries, scored by one matrix product per tile of the context vectors
+	 * @param queries one query vector per row
+	 * @param results one selection per query, reset and filled with the ids and cosine scores of its result.k() nearest contexts
+	 * @return results
+	 */
+	public TopK[] contextsNearestBatch (INDArray queries, TopK[] results) {
+		return nearestBatch(contextVectors, queries, results);
+	}
+
+	/** @return lists of nearest {@link Pair} of each given context, as {@link #contextsNearest(String, Integer)} */
+	public List<List<Pair<String, Double>>> contextsNearestBatch (List<String> contexts, Integer top) {
+		top = MoreObjects.firstNonNull(top, 10);
+		if (contexts.isEmpty()) return new ArrayList<>();
+		INDArray queries = Nd4j.create(contexts.size(), layerSize);
+		for (int i = 0; i < contexts.size(); i++) queries.putRow(i, getContextVector(contexts.get(i)));
+		return pairs(contextsNearestBatch(queries, topK(contexts.size(), top)), contextVocab);
 	}
 
 	/**
@@ -107,6 +189,11 @@ public class Word2Vecf extends Word2Vec {
 	 */
 	public List<Pair<String, Double>> lexicalSubstituteMult (String word, List<String> contexts, boolean average, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10);
+		return pairs(lexicalSubstituteMultTopK(word, contexts, average, new TopK(top)), wordVocab);
+	}
+
+	/** @return result, reset and filled with the ids and scores of the result.k() best substitutes by Multiple Method */
+	public TopK lexicalSubstituteMultTopK (String word, List<String> contexts, boolean average, TopK result) {
 		INDArray targetVec = getWordVector(word);
 		INDArray scores = wordPosSimilarity(targetVec);
 		for (String context : contexts) {
@@ -116,9 +203,7 @@ public class Word2Vecf extends Word2Vec {
 				scores.muli(multScores);
 			}
 		}
-		List<Pair<String, Double>> list = new ArrayList<>(wordVocab.size());
-		for (int i = 0; i < wordVocab.size(); i++) { list.add(new Pair<>(wordVocab.get(i), scores.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue()))).limit(top).collect(Collectors.toCollection(LinkedList::new));
+		return result.reset(result.k()).offerAll(scores);
 	}
 
 	/**
@@ -131,6 +216,11 @@ public class Word2Vecf extends Word2Vec {
 	 */
 	public List<Pair<String, Double>> lexicalSubstituteAdd (String word, List<String> contexts, boolean average, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10);
+		return pairs(lexicalSubstituteAddTopK(word, contexts, average, new TopK(top)), wordVocab);
+	}
+
+	/** @return result, reset and filled with the ids and scores of the result.k() best substitutes by Add Method */
+	public TopK lexicalSubstituteAddTopK (String word, List<String> contexts, boolean average, TopK result) {
 		INDArray targetVec = getWordVector(word);
 		INDArray ctxVec = zeros();
 		int found = 0;
@@ -145,9 +235,7 @@ public class Word2Vecf extends Word2Vec {
 		norm = norm == 0.0 ? 1.0 : norm;
 		targetVec.divi(Nd4j.scalar(norm));
 		INDArray scores = wordSimilarity(targetVec);
-		List<Pair<String, Double>> list = new ArrayList<>(wordVocab.size());
-		for (int i = 0; i < wordVocab.size(); i++) { list.add(new Pair<>(wordVocab.get(i), scores.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue()))).limit(top).collect(Collectors.toCollection(LinkedList::new));
+		return result.reset(result.k()).offerAll(scores);
 	}
 
 	/**
@@ -160,6 +248,11 @@ public class Word2Vecf extends Word2Vec {
 	 */
 	public List<Pair<String, Double>> lexicalSubstituteAdaptive (String word, List<String> contexts, double parameter, Integer top) {
 		top = MoreObjects.firstNonNull(top, 10);
+		return pairs(lexicalSubstituteAdaptiveTopK(word, contexts, parameter, new TopK(top)), wordVocab);
+	}
+
+	/** @return result, reset and filled with the ids and scores of the result.k() best substitutes by Adaptive Method */
+	public TopK lexicalSubstituteAdaptiveTopK (String word, List<String> contexts, double parameter, TopK result) {
 		if (parameter < 0 && parameter > 1.0)
 			parameter = 0.5; // set default value
 		INDArray targetVec = getWordVector(word);
@@ -180,9 +273,7 @@ public class Word2Vecf extends Word2Vec {
 		else cscores.divi(cscores.maxNumber());
 		INDArray scores = wscores.mul(1.0 - parameter).add(cscores.mul(parameter));
 		scores.divi(scores.maxNumber());
-		List<Pair<String, Double>> list = new ArrayList<>(wordVocab.size());
-		for (int i = 0; i < getWordVocab().size(); i++) { list.add(new Pair<>(wordVocab.get(i), scores.getDouble(i))); }
-		return list.stream().sorted((e1, e2) -> Double.valueOf(e2.getValue()).compareTo(Double.valueOf(e1.getValue()))).limit(top).collect(Collectors.toCollection(LinkedList::new));
+		return result.reset(result.k()).offerAll(scores);
 	}
 
 	public List<String> getContextVocab () { return contextVocab; }
@@ -1,5 +1,7 @@
 package com.isaac.word2vecf;
 
+import java.util.List;
+
 /**
  * Created by zhanghao on 18/4/17.
  * @author  ZHANG HAO
@@ -13,10 +15,26 @@ public class Word2VecfConfigs {
     final double initialLearningRate;
     final int negativeSamples;
     final double downSampleRate;
-    private final int debugMode;
+    final int debugMode;
+    final boolean offHeap;
+    final String compiledFile;
+    final boolean legacyUnigramTable;
+    final int miniBatchSize;
+    final String checkpointDirectory;
+    final long checkpointInterval;
+    final boolean resumeFromCheckpoint;
+    final int pipelineReaders;
+    final List<TrainingListener> listeners;
+    final boolean jmx;
+    final long reportInterval;
+    final boolean hierarchicalSoftmax;
+    final boolean compressedCorpus;
 
     /** Constructor */
-    Word2VecfConfigs(int layerSize, int iterations, int numThreads, int minFrequency, double initialLearningRate, int negativeSamples, double downSampleRate, int debugMode) {
+    Word2VecfConfigs(int layerSize, int iterations, int numThreads, int minFrequency, double initialLearningRate, int negativeSamples, double downSampleRate, int debugMode, boolean offHeap, String compiledFile, boolean legacyUnigramTable, int miniBatchSize,
+                     String checkpointDirectory, long checkpointInterval, boolean resumeFromCheckpoint, int pipelineReaders,
+                     List<TrainingListener> listeners, boolean jmx, long reportInterval, boolean hierarchicalSoftmax,
+                     boolean compressedCorpus) {
         this.layerSize = layerSize;
         this.iterations = iterations;
         this.numThreads = numThreads;
@@ -25,11 +43,25 @@ public class Word2VecfConfigs {
         this.negativeSamples = negativeSamples;
         this.downSampleRate = downSampleRate;
         this.debugMode = debugMode;
+        this.offHeap = offHeap;
+        this.compiledFile = compiledFile;
+        this.legacyUnigramTable = legacyUnigramTable;
+        this.miniBatchSize = miniBatchSize;
+        this.checkpointDirectory = checkpointDirectory;
+        this.checkpointInterval = checkpointInterval;
+        this.resumeFromCheckpoint = resumeFromCheckpoint;
+        this.pipelineReaders = pipelineReaders;
+        this.listeners = listeners;
+        this.jmx = jmx;
+        this.reportInterval = reportInterval;
+        this.hierarchicalSoftmax = hierarchicalSoftmax;
+        this.compressedCorpus = compressedCorpus;
     }
 
     @Override
     public String toString() {
-        return String.format("Training Word2VecfConfigs: threads: %d, iterations: %d, layer size: %d, minimum vocabulary frequency: %d, initial learning rate: %.5f, negative samples: %d, down sampling rate: %.5f, debug mode: %d\n",
-                numThreads, iterations, layerSize, minFrequency, initialLearningRate, negativeSamples, downSampleRate, debugMode);
+        return String.format("Training Word2VecfConfigs: threads: %d, iterations: %d, layer size: %d, minimum vocabulary frequency: %d, initial learning rate: %.5f, negative samples: %d, down sampling rate: %.5f, debug mode: %d, off-heap storage: %b, compiled training file: %s, legacy unigram table: %b, mini-batch size: %d, checkpoint directory: %s, checkpoint interval: %d, resume: %b, pipeline readers: %d, training listeners: %d, jmx: %b, report interval: %ds, hierarchical softmax: %b, compressed corpus: %b\n",
+                numThreads, iterations, layerSize, minFrequency, initialLearningRate, negativeSamples, downSampleRate, debugMode, offHeap, compiledFile, legacyUnigramTable, miniBatchSize,
+                checkpointDirectory, checkpointInterval, resumeFromCheckpoint, pipelineReaders, listeners.size(), jmx, reportInterval, hierarchicalSoftmax, compressedCorpus);
     }
 }
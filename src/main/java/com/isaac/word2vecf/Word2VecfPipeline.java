@@ -0,0 +1,323 @@
+package com.isaac.word2vecf;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.corpus.StreamingPairSource;
+import com.isaac.word2vecf.corpus.TextPairSource;
+import com.isaac.word2vecf.utils.CallableVoid;
+import com.isaac.word2vecf.utils.CompressedStreams;
+import com.isaac.word2vecf.utils.ConllFileGenerator;
+import com.isaac.word2vecf.vocabulary.ExtractionImpl;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+import com.isaac.word2vecf.vocabulary.VocabFunctions;
+import com.isaac.word2vecf.vocabulary.Vocabulary;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trains word2vecf from a raw corpus, compressed or not, without the intermediate CoNLL, dep.context and vocabulary
+ * files: a reader thread hands the lines to parser threads through a bounded queue, each parser thread parses them
+ * with its own CoreNLP pipeline as {@link ConllFileGenerator}, extracts the dependency contexts as
+ * {@link ExtractionImpl} and encodes the pairs to ids into a {@link StreamingPairSource} drained by the trainer. Only
+ * the trained vectors are left to be saved.
+ * The vocabularies are either read from files, as written by {@link ExtractionImpl}, or counted from the first lines
+ * of the corpus, their counts scaled up to the size of the whole corpus. The lines of that sample are trained from
+ * their parses kept in memory rather than parsed again.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class Word2VecfPipeline {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(Word2VecfPipeline.class);
+
+	/** Number of pairs of a batch of the stream, which the trainer reads at once */
+	private static final int BATCH_SIZE = 1_024;
+	/** Raw lines queued per parser thread */
+	private static final int QUEUE_LINES_PER_THREAD = 16;
+	private static final String END = new String("<end>");
+
+	private Integer parserThreads;
+	private String wordVocabFile;
+	private String contextVocabFile;
+	private Integer sampleLines;
+	private Integer minCount;
+	private Integer queueCapacity;
+	private Boolean retainPairs;
+
+	private Word2VecfPipeline() {}
+
+	/** number of parser threads, each holding a CoreNLP pipeline (default available processors) */
+	public Word2VecfPipeline useParserThreads(int parserThreads) {
+		Preconditions.checkArgument(parserThreads > 0, "parser threads must be positive");
+		this.parserThreads = parserThreads;
+		return this;
+	}
+
+	/** read the word and context vocabularies from files, e.g. extracted from an earlier run, instead of sampling them */
+	public Word2VecfPipeline useVocabularies(String wordVocabFile, String contextVocabFile) {
+		Preconditions.checkArgument(wordVocabFile != null && new File(wordVocabFile).exists(), "word vocabulary file not found");
+		Preconditions.checkArgument(contextVocabFile != null && new File(contextVocabFile).exists(), "context vocabulary file not found");
+		this.wordVocabFile = wordVocabFile;
+		this.contextVocabFile = contextVocabFile;
+		return this;
+	}
+
+	/** count the vocabularies from the first lines of the corpus (default 100000) */
+	public Word2VecfPipeline sampleVocabularies(int sampleLines) {
+		Preconditions.checkArgument(sampleLines > 0, "sample lines must be positive");
+		this.sampleLines = sampleLines;
+		return this;
+	}
+
+	/** drop the sampled words and contexts whose scaled count is under minCount (default 5) */
+	public Word2VecfPipeline setMinCount(int minCount) {
+		Preconditions.checkArgument(minCount >= 0, "minCount must be non-negative");
+		this.minCount = minCount;
+		return this;
+	}
+
+	/** number of pair batches of 1024 pairs buffered between the parsers and the trainer (default 1024) */
+	public Word2VecfPipeline setQueueCapacity(int queueCapacity) {
+		Preconditions.checkArgument(queueCapacity > 0, "queue capacity must be positive");
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * keep the encoded pairs in memory, a few bytes per pair, so that the iterations after the first one replay them
+	 * instead of parsing the corpus again (default true), required to train more than one iteration
+	 */
+	public Word2VecfPipeline retainPairs(boolean retainPairs) {
+		this.retainPairs = retainPairs;
+		return this;
+	}
+
+	/** @return {@link Word2Vecf} trained by the trainer on the raw corpus */
+	public Word2Vecf train(String rawFile, Word2VecfTrainerBuilder trainer) {
+		Preconditions.checkArgument(rawFile != null && !rawFile.isEmpty(), "raw corpus file path must be assigned");
+		if (!(new File(rawFile).exists()))
+			throw new IllegalArgumentException("raw corpus file not found");
+		Preconditions.checkNotNull(trainer, "trainer must be assigned");
+		this.parserThreads = MoreObjects.firstNonNull(parserThreads, Runtime.getRuntime().availableProcessors());
+		this.sampleLines = MoreObjects.firstNonNull(sampleLines, 100_000);
+		this.minCount = MoreObjects.firstNonNull(minCount, 5);
+		this.queueCapacity = MoreObjects.firstNonNull(queueCapacity, 1_024);
+		this.retainPairs = MoreObjects.firstNonNull(retainPairs, true);
+		// the iterations after the first one replay the retained pairs, fail before parsing rather than after a pass
+		Preconditions.checkArgument(retainPairs || trainer.getNumIterations() == 1,
+				String.format("%d iterations require the streamed pairs to be retained", trainer.getNumIterations()));
+		ConllFileGenerator.Statistics statistics = new ConllFileGenerator.Statistics();
+		ExecutorService ex = Executors.newFixedThreadPool(parserThreads + 1);
+		List<Future<Void>> futures = new ArrayList<>();
+		try (FileInputStream file = new FileInputStream(rawFile);
+			 BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedStreams.open(file, rawFile)))) {
+			List<StanfordCoreNLP> pipelines = new ArrayList<>();
+			for (int i = 0; i < parserThreads; i++) pipelines.add(ConllFileGenerator.createPipeline());
+			List<String> sample = new ArrayList<>();
+			FrozenVocabulary wv, cv;
+			if (wordVocabFile != null) {
+				wv = Word2VecfTrainer.readVocab(wordVocabFile);
+				cv = Word2VecfTrainer.readVocab(contextVocabFile);
+			} else {
+				long[] sampleBytes = new long[1];
+				sample = parseSample(reader, pipelines, ex, statistics, sampleBytes);
+				// the sample stops short of the end of the corpus, scale by the part of the file its lines take; the size
+				// of a compressed corpus is only known compressed, whose position runs ahead of the lines read by the
+				// buffered decoder, so its counts are scaled slightly short
+				double scale = 1;
+				if (sample.size() == sampleLines) {
+					long read = CompressedStreams.isCompressed(rawFile) ? file.getChannel().position() : sampleBytes[0];
+					scale = (double) file.getChannel().size() / Math.max(read, 1);
+				}
+				FrozenVocabulary[] vocabularies = countVocabularies(sample, scale);
+				wv = vocabularies[0];
+				cv = vocabularies[1];
+			}
+			log.info(String.format("Streaming %s with %d parser threads, word vocabulary size: %d, context vocabulary size: %d",
+					rawFile, parserThreads, wv.size(), cv.size()));
+			StreamingPairSource source = new StreamingPairSource(wv, cv, queueCapacity, BATCH_SIZE, retainPairs);
+			BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_LINES_PER_THREAD * parserThreads);
+			AtomicInteger running = new AtomicInteger(parserThreads);
+			for (int i = 0; i < parserThreads; i++) {
+				List<String> parsed = sample.subList(sample.size() * i / parserThreads, sample.size() * (i + 1) / parserThreads);
+				futures.add(ex.submit(new Parser(pipelines.get(i), queue, parsed, source, statistics, running)));
+			}
+			futures.add(ex.submit(new CallableVoid() {
+				@Override
+				protected void run() throws Exception {
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							if (!line.isEmpty() && !offer(queue, line, source)) return;
+						}
+						for (int i = 0; i < parserThreads; i++) if (!offer(queue, END, source)) return;
+					} catch (Exception e) {
+						if (source.isAborted()) return; // stopped by another failure
+						source.abort();
+						throw e;
+					}
+				}
+			}));
+			Word2Vecf model;
+			try {
+				model = trainer.train(source, wv, cv);
+			} catch (RuntimeException e) {
+				// the producers stop once aborted, rethrow the failure of a producer rather than its consequence
+				source.abort();
+				for (Future<Void> future : futures) future.get();
+				throw e;
+			}
+			for (Future<Void> future : futures) future.get();
+			log.info(String.format("%s, %d pairs streamed, %d pairs out of vocabulary dropped", statistics, source.numPairs(), source.dropped()));
+			return model;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error reading raw corpus " + rawFile, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error streaming training pairs", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while streaming training pairs", e);
+		} finally {
+			ex.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param bytes holds the number of bytes of the lines read in the platform charset, line ends included, once returned
+	 * @return CoNLL texts of the first sampleLines non empty lines, parsed in parallel
+	 */
+	private List<String> parseSample(BufferedReader reader, List<StanfordCoreNLP> pipelines, ExecutorService ex,
+			ConllFileGenerator.Statistics statistics, long[] bytes) throws IOException, InterruptedException, ExecutionException {
+		List<String> lines = new ArrayList<>();
+		Charset charset = Charset.defaultCharset();
+		String line;
+		while (lines.size() < sampleLines && (line = reader.readLine()) != null) {
+			bytes[0] += line.getBytes(charset).length + 1;
+			if (!line.isEmpty()) lines.add(line);
+		}
+		String[] parsed = new String[lines.size()];
+		List<CallableVoid> tasks = new ArrayList<>();
+		for (int i = 0; i < pipelines.size(); i++) {
+			StanfordCoreNLP pipeline = pipelines.get(i);
+			int start = lines.size() * i / pipelines.size();
+			int end = lines.size() * (i + 1) / pipelines.size();
+			tasks.add(new CallableVoid() {
+				@Override
+				protected void run() throws IOException {
+					StringBuilder sb = new StringBuilder();
+					for (int j = start; j < end; j++) {
+						sb.setLength(0);
+						ConllFileGenerator.parse(pipeline, lines.get(j), sb, statistics);
+						parsed[j] = sb.toString();
+					}
+				}
+			});
+		}
+		for (Future<Void> future : ex.invokeAll(tasks)) future.get();
+		List<String> sample = new ArrayList<>();
+		for (String conll : parsed) sample.add(conll);
+		return sample;
+	}
+
+	/** @return word and context vocabularies of the pairs of the sample, counts multiplied by scale */
+	private FrozenVocabulary[] countVocabularies(List<String> sample, double scale) throws IOException {
+		VocabFunctions V = new VocabFunctions();
+		Vocabulary wv = V.createVocabulary();
+		Vocabulary cv = V.createVocabulary();
+		for (String conll : sample) {
+			ExtractionImpl.extract(conll, (word, context, other) -> {
+				count(V, wv, word);
+				count(V, cv, context);
+			});
+		}
+		for (Vocabulary v : new Vocabulary[] { wv, cv })
+			for (Vocabulary.VocabWord w : v.vocab) w.cn = Math.round(w.cn * scale);
+		V.sortAndReduceVocab(wv, minCount);
+		V.sortAndReduceVocab(cv, minCount);
+		log.info(String.format("Sampled %d lines, counts scaled by %.2f", sample.size(), scale));
+		return new FrozenVocabulary[] { wv.freeze(), cv.freeze() };
+	}
+
+	/** count the word, truncated as the streamed pairs */
+	private static void count(VocabFunctions V, Vocabulary v, String word) {
+		if (word.length() > TextPairSource.MAX_STRING) word = word.substring(0, TextPairSource.MAX_STRING);
+		int a = V.searchVocab(v, word);
+		if (a == -1) a = V.addWordToVocab(v, word);
+		v.vocab.get(a).cn++;
+	}
+
+	/** Parser thread, streams the pairs of the parsed sample lines then of the queued lines until the end mark */
+	private static class Parser extends CallableVoid {
+		final StanfordCoreNLP pipeline;
+		final BlockingQueue<String> queue;
+		final List<String> parsed;
+		final StreamingPairSource source;
+		final ConllFileGenerator.Statistics statistics;
+		/** parser threads still running, the last one closes the source */
+		final AtomicInteger running;
+
+		Parser(StanfordCoreNLP pipeline, BlockingQueue<String> queue, List<String> parsed, StreamingPairSource source,
+				ConllFileGenerator.Statistics statistics, AtomicInteger running) {
+			this.pipeline = pipeline;
+			this.queue = queue;
+			this.parsed = parsed;
+			this.source = source;
+			this.statistics = statistics;
+			this.running = running;
+		}
+
+		@Override
+		protected void run() throws Exception {
+			StreamingPairSource.Producer producer = source.producer();
+			try {
+				for (String conll : parsed) ExtractionImpl.extract(conll, producer);
+				StringBuilder sb = new StringBuilder();
+				String line;
+				while ((line = take(queue, source)) != END) {
+					sb.setLength(0);
+					ConllFileGenerator.parse(pipeline, line, sb, statistics);
+					ExtractionImpl.extract(sb.toString(), producer);
+				}
+				producer.flush();
+			} catch (Exception e) {
+				if (source.isAborted()) return; // stopped by another failure
+				source.abort();
+				throw e;
+			} finally {
+				if (running.decrementAndGet() == 0) source.close();
+			}
+		}
+	}
+
+	/** @return false if the source was aborted while waiting for room in the queue */
+	private static boolean offer(BlockingQueue<String> queue, String line, StreamingPairSource source) throws InterruptedException {
+		while (!queue.offer(line, 100, TimeUnit.MILLISECONDS)) {
+			if (source.isAborted()) return false;
+		}
+		return true;
+	}
+
+	/** @return next line of the queue, the end mark if the source was aborted while waiting */
+	private static String take(BlockingQueue<String> queue, StreamingPairSource source) throws InterruptedException {
+		String line;
+		while ((line = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+			if (source.isAborted()) return END;
+		}
+		return line;
+	}
+
+	/** @return {@link Word2VecfPipeline} for training a model from a raw corpus */
+	public static Word2VecfPipeline pipeline() {
+		return new Word2VecfPipeline();
+	}
+}
@@ -4,20 +4,32 @@ package com.isaac.word2vecf;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;*/
+import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.corpus.BlockCompressedPairCorpus;
+import com.isaac.word2vecf.corpus.CompiledPairCorpus;
+import com.isaac.word2vecf.corpus.PairReader;
+import com.isaac.word2vecf.corpus.PairRingBuffer;
+import com.isaac.word2vecf.corpus.PairSource;
+import com.isaac.word2vecf.corpus.TextPairSource;
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import com.isaac.word2vecf.matrix.VectorMath;
 import com.isaac.word2vecf.utils.CallableVoid;
-import com.isaac.word2vecf.utils.Common;
+import com.isaac.word2vecf.utils.CompressedStreams;
+import com.isaac.word2vecf.utils.WordVectorSerializer;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
 import com.isaac.word2vecf.vocabulary.VocabFunctions;
 import com.isaac.word2vecf.vocabulary.Vocabulary;
-import com.isaac.word2vecf.vocabulary.Vocabulary.VocabWord;
 import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by zhanghao on 18/4/17.
@@ -30,8 +42,8 @@ public class Word2VecfTrainer {
 	/** Logger */
 	private static Logger log = LoggerFactory.getLogger(Word2VecfTrainer.class);
 
-	/** A string longer than this are trunked the first part */
-	private static final int MAX_STRING = 100;
+	/** Batches of the pipeline ring per trainer thread */
+	private static final int RING_BATCHES_PER_THREAD = 16;
 	/** Boundary for maximum exponent allowed */
 	private static final int MAX_EXP = 6;
 	/** Pre-cached exponent table */
@@ -46,19 +58,16 @@ public class Word2VecfTrainer {
 		}
 	}
 
-	/** define the table size */
-	private static final int TABLE_SIZE = (int) 1e8;
 	/** layer size */
 	private final int layer1_size;
 	/** number of trained tokens */
 	private long numTrainedTokens;
 
-	/** file to be trained */
-	private final String trainFile;
-	private final long fileSize;
-	/** word and context vocabularies */
-	private final Vocabulary wv;
-	private final Vocabulary cv;
+	/** training pairs, parsed from the training file, read from its compiled form or streamed from a raw corpus */
+	private final PairSource source;
+	/** word and context vocabularies, frozen once loaded */
+	private final FrozenVocabulary wv;
+	private final FrozenVocabulary cv;
 	/** configurations of word2vecf training */
 	private final Word2VecfConfigs config;
 
@@ -69,62 +78,108 @@ public class Word2VecfTrainer {
 	 * words that are discarded from sampling. Note that each word is processed
 	 * once per iteration.
 	 */
-	private final AtomicInteger actualWordCount;
+	private final AtomicLong actualWordCount;
 	/** Learning rate, affects how fast values in the layers get updated */
 	private volatile double alpha;
 	/**
 	 * This contains the outer layers of the neural network
-	 * First dimension is the vocab size, second is the layer
+	 * Rows are the vocab entries, columns are the layer, stored contiguously in single precision
 	 */
-	private final double[][] syn0;
-	private final double[][] syn1neg;
-	/** Used for negative sampling */
-	private final int[] unitable;
+	private final FloatMatrix syn0;
+	private final FloatMatrix syn1neg;
+	/** Used for negative sampling, null without negative samples */
+	private final NegativeSampler sampler;
+	/** Used for hierarchical softmax: the tree over the contexts and the vectors of its inner nodes, null otherwise */
+	private final HuffmanTree tree;
+	private final FloatMatrix syn1;
+	/** Writes periodic snapshots, null if checkpointing is disabled */
+	private final Checkpointer checkpointer;
+	/** Iterations finished before this run, restored from a checkpoint */
+	private int completedIterations;
+	/** Value of actualWordCount at which the next periodic snapshot is taken */
+	private final AtomicLong nextCheckpoint = new AtomicLong(Long.MAX_VALUE);
+	/** Collects and reports the training metrics of the running train() */
+	private TrainingMonitor monitor;
 
 
 	Word2VecfTrainer(String trainFile, String wordVocabFile, String contextVocabFile, Word2VecfConfigs config) {
-		this.trainFile = trainFile;
-		this.fileSize = Common.getFileSize(trainFile);
-		this.wv = readVocab(wordVocabFile);
-		this.cv = readVocab(contextVocabFile);
+		this(trainFile, readVocab(wordVocabFile), readVocab(contextVocabFile), config);
+	}
+
+	private Word2VecfTrainer(String trainFile, FrozenVocabulary wv, FrozenVocabulary cv, Word2VecfConfigs config) {
+		this(createPairSource(trainFile, wv, cv, config), wv, cv, config);
+	}
+
+	/** Constructor, training the pairs of the source, whose ids index the given vocabularies */
+	Word2VecfTrainer(PairSource source, FrozenVocabulary wv, FrozenVocabulary cv, Word2VecfConfigs config) {
+		this.wv = wv;
+		this.cv = cv;
 		this.config = config;
+		this.source = source;
 		this.layer1_size = config.layerSize;
-		this.numTrainedTokens = wv.wordCount;
-		this.actualWordCount = new AtomicInteger();
+		this.numTrainedTokens = wv.wordCount();
+		this.actualWordCount = new AtomicLong();
 		this.alpha = config.initialLearningRate;
-		this.syn0 = new double[wv.vocabSize][layer1_size];
-		this.syn1neg = new double[cv.vocabSize][layer1_size];
-		this.unitable = new int[TABLE_SIZE];
-		initializeUnigramTable();
-		initializeNet();
+		this.syn0 = FloatMatrix.create(wv.size(), layer1_size, config.offHeap);
+		this.syn1neg = FloatMatrix.create(cv.size(), layer1_size, config.offHeap);
+		log.info(String.format("Parameter storage: syn0 %s, syn1neg %s", syn0, syn1neg));
+		if (config.negativeSamples > 0)
+			this.sampler = config.legacyUnigramTable ? new UnigramTableSampler(cv) : new AliasNegativeSampler(cv);
+		else this.sampler = null;
+		if (config.hierarchicalSoftmax) {
+			this.tree = new HuffmanTree(cv);
+			this.syn1 = FloatMatrix.create(tree.innerNodes(), layer1_size, config.offHeap);
+			log.info(String.format("Hierarchical softmax: %d inner nodes, average code length %.2f", tree.innerNodes(), tree.averageCodeLength(cv)));
+			if (config.negativeSamples == 0) log.warn("Hierarchical softmax without negative samples: context vectors are not learned and stay zero");
+		} else {
+			this.tree = null;
+			this.syn1 = null;
+		}
+		Checkpointer.State state = config.resumeFromCheckpoint ? restoreCheckpoint() : null;
+		if (state != null) {
+			// an interrupted iteration is trained again from its first pair, so the schedule restarts where it began
+			this.completedIterations = state.completedIterations;
+			this.actualWordCount.set(completedIterations * numTrainedTokens);
+			this.alpha = config.initialLearningRate * Math.max(1 - completedIterations / (double) config.iterations, 0.0001);
+			log.info(String.format("Training resumes from iteration %d, words: %d, alpha: %.6f", completedIterations + 1, actualWordCount.get(), alpha));
+		} else initializeNet();
+		this.checkpointer = config.checkpointDirectory == null ? null : new Checkpointer(config.checkpointDirectory, syn0, syn1neg, syn1);
+		if (config.checkpointInterval > 0) nextCheckpoint.set(actualWordCount.get() + config.checkpointInterval);
 	}
 
-	/** initialize unigram table */
-	private void initializeUnigramTable() {
-		double power = 0.75f;
-		long normalizer = 0;
-		for (Vocabulary.VocabWord word : cv.vocab)
-			normalizer += Math.pow(word.cn, power);
-		int i = 0;
-		double d1 = Math.pow(cv.vocab.get(i).cn, power) / normalizer;
-		for (int a = 0; a < TABLE_SIZE; a++) {
-			unitable[a] = i;
-			if (a / (double) TABLE_SIZE > d1) {
-				i++;
-				d1 += Math.pow(cv.vocab.get(i).cn, power) / normalizer;
+	/** @return {@link Checkpointer.State} of the latest snapshot, null if there is none */
+	private Checkpointer.State restoreCheckpoint() {
+		try {
+			return Checkpointer.restore(config.checkpointDirectory, syn0, syn1neg, syn1);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error restoring checkpoint from " + config.checkpointDirectory, e);
+		}
+	}
+
+	/** @return {@link PairSource} of the training file */
+	private static PairSource createPairSource(String trainFile, FrozenVocabulary wv, FrozenVocabulary cv, Word2VecfConfigs config) {
+		boolean compressedInput = CompressedStreams.isCompressed(trainFile);
+		if (config.compiledFile == null && !config.compressedCorpus && !compressedInput) return new TextPairSource(trainFile, wv, cv);
+		try {
+			// a compressed training file cannot be split into byte ranges, the workers read the blocks of its compiled form
+			if (config.compressedCorpus || config.compiledFile == null) {
+				String compressedFile = config.compiledFile != null ? config.compiledFile : trainFile.concat(".blocks");
+				return BlockCompressedPairCorpus.openOrCompile(compressedFile, trainFile, wv, cv);
 			}
-			if (i >= cv.vocabSize) i = cv.vocabSize - 1;
+			return CompiledPairCorpus.openOrCompile(config.compiledFile, trainFile, wv, cv);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error compiling training file " + trainFile, e);
 		}
 	}
 
 	/** initialize net */
 	private void initializeNet() {
 		long nextRandom = 1;
-		for (int a = 0; a < wv.vocabSize; a++) {
+		for (int a = 0; a < wv.size(); a++) {
 			nextRandom = incrementRandom(nextRandom);
 			for (int b = 0; b < layer1_size; b++) {
 				nextRandom = incrementRandom(nextRandom);
-				syn0[a][b] = (((nextRandom & 0xFFFF) / (double) 65_536) - 0.5) / layer1_size;
+				syn0.put(a, b, (float) ((((nextRandom & 0xFFFF) / (double) 65_536) - 0.5) / layer1_size));
 			}
 		}
 	}
@@ -134,117 +189,246 @@ public class Word2VecfTrainer {
 		return r * 25_214_903_917L + 11;
 	}
 
-	/** @return {@link Word2Vecf} */
+	/** @return label - sigmoid(f), read from the pre-computed table and clipped beyond MAX_EXP */
+	private static double gradient(double f, int label) {
+		if (f > MAX_EXP) return label - 1;
+		else if (f < -MAX_EXP) return label - 0;
+		else return label - EXP_TABLE[(int) ((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+	}
+
+	/** @return {@link Word2Vecf}, rejected before training if its vectors exceed an ND4J array */
 	Word2Vecf train() {
-		/*final ListeningExecutorService ex = MoreExecutors.listeningDecorator(
-				new ThreadPoolExecutor(config.numThreads, config.numThreads, 0L, TimeUnit.MILLISECONDS,
-						new ArrayBlockingQueue<>(config.numThreads), new ThreadPoolExecutor.CallerRunsPolicy()));*/
-		final ExecutorService ex = Executors.newFixedThreadPool(config.numThreads);
+		for (FloatMatrix matrix : new FloatMatrix[] {syn0, syn1neg})
+			Preconditions.checkState(matrix.fitsINDArray(), String.format("%s exceeds the size of an ND4J array, train to files instead", matrix));
+		trainVectors();
+		return new Word2Vecf(layer1_size, wv.wordSet(), syn0.toINDArray(), cv.wordSet(), syn1neg.toINDArray(), true);
+	}
+
+	/** Train, then write the normalized word and context vectors to binary files a row at a time, whatever their size */
+	void train(String wordToPath, String contextToPath) {
+		trainVectors();
+		try {
+			WordVectorSerializer.saveToBinary(wordToPath, wv.wordSet(), syn0, true);
+			WordVectorSerializer.saveToBinary(contextToPath, cv.wordSet(), syn1neg, true);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error saving trained vectors", e);
+		}
+	}
+
+	/** train syn0 and syn1neg over all the iterations left */
+	private void trainVectors() {
+		final ExecutorService ex = Executors.newFixedThreadPool(config.numThreads + config.pipelineReaders);
+		this.monitor = new TrainingMonitor(config, numTrainedTokens, new TrainingMonitor.TrainerState() {
+			@Override public double alpha() { return alpha; }
+			@Override public long actualWordCount() { return actualWordCount.get(); }
+		});
 		try {
-			for (int iter = config.iterations; iter > 0; iter--) {
-				//List<ListenableFuture<?>> futures = new ArrayList<>(); // initialCapacity: 64
+			for (int iter = config.iterations - completedIterations; iter > 0; iter--) {
+				monitor.startIteration(config.iterations - iter + 1);
 				List<CallableVoid> tasks = new ArrayList<>();
+				// in pipeline mode, reader threads decode the data into the ring and the workers only train
+				PairRingBuffer ring = null;
+				if (config.pipelineReaders > 0) {
+					ring = new PairRingBuffer(RING_BATCHES_PER_THREAD * config.numThreads, Worker.BATCH_SIZE);
+					AtomicInteger running = new AtomicInteger(config.pipelineReaders);
+					for (int shard = 0; shard < config.pipelineReaders; shard++)
+						tasks.add(new PipelineReader(ring, shard, running));
+				}
 				int i = 0;
 				for (int id = 0; id < config.numThreads; id++) {
-					//futures.add(ex.submit(createWorker(i, iter, id)));
-					tasks.add(createWorker(i, iter, id));
+					tasks.add(createWorker(i, iter, id, ring));
 					i++;
 				}
-				/*try {
-					Futures.allAsList(futures).get();
-				} catch (ExecutionException e) {
-					throw new IllegalStateException("Error training word2vecf model", e.getCause());
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}*/
-				for (CallableVoid task : tasks)
-					ex.submit(task);
+				// wait for the whole iteration, the next one starts from the updated weights
+				for (Future<Void> future : ex.invokeAll(tasks)) future.get();
+				if (checkpointer != null) checkpointer.snapshot(config.iterations - iter + 1, actualWordCount.get(), alpha);
 			}
 			ex.shutdown();
+			if (checkpointer != null) checkpointer.close();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error training word2vecf model", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while training word2vecf model", e);
 		} finally {
 			ex.shutdownNow();
+			monitor.close();
 		}
-		return new Word2Vecf(layer1_size, wv.wordSet(), Nd4j.create(syn0), cv.wordSet(), Nd4j.create(syn1neg), true);
 	}
 
 	/** @return {@link Worker} to process the given sentences */
-	private Worker createWorker(int randomSeed, int iter, int id) {
-		return new Worker(randomSeed, iter, id);
+	private Worker createWorker(int randomSeed, int iter, int id, PairRingBuffer ring) {
+		return new Worker(randomSeed, iter, id, ring);
+	}
+
+	/** Reader thread of the pipeline mode, decodes one shard of the training data into the ring */
+	private class PipelineReader extends CallableVoid {
+		final PairRingBuffer ring;
+		final int shard;
+		/** readers of the iteration still running, the last one closes the ring */
+		final AtomicInteger running;
+
+		PipelineReader(PairRingBuffer ring, int shard, AtomicInteger running) {
+			this.ring = ring;
+			this.shard = shard;
+			this.running = running;
+		}
+
+		@Override
+		public void run() throws Exception {
+			final int[] words = new int[ring.batchSize()];
+			final int[] contexts = new int[ring.batchSize()];
+			try (PairReader reader = source.open(shard, config.pipelineReaders)) {
+				int n;
+				while ((n = reader.read(words, contexts)) > 0) {
+					if (!ring.put(words, contexts, n)) break;
+				}
+			} catch (Exception e) {
+				ring.abort();
+				throw e;
+			} finally {
+				if (running.decrementAndGet() == 0) ring.close();
+			}
+		}
 	}
 
 	/** Worker thread that updates the word2vecf model */
 	private class Worker extends CallableVoid {
 		private static final int LEARNING_RATE_UPDATE_FREQUENCY = 10_000;
+		/** Number of pairs fetched from the reader at once */
+		private static final int BATCH_SIZE = 1_024;
 		long nextRandom;
 		final int iter;
 		final int id;
+		/** ring filled by the pipeline readers, null if the worker reads its own shard */
+		final PairRingBuffer ring;
 		/**
 		 * The number of words observed in the training data for this worker
 		 * that exist in the vocabulary. It includes words that are discarded
 		 * from sampling.
 		 */
-		int wordCount;
+		long wordCount;
 		/** Value of wordCount the last time alpha was update */
-		int lastWordCount;
+		long lastWordCount;
+		/** Pairs discarded by down sampling since the last flush to the monitor */
+		long dropped;
+
+		final float[] neu1e = new float[layer1_size];
+		final int[] words = new int[BATCH_SIZE];
+		final int[] contexts = new int[BATCH_SIZE];
 
-		final double[] neu1e = new double[layer1_size];
+		/* -----Mini-batch mode: pairs waiting for the update, their shared negatives and the gathered rows----- */
+		final int[] batchWords;
+		final int[] batchContexts;
+		int batchCount;
+		final int[] negatives;
+		/** rows of syn0 (inputs), syn1neg for the positive contexts (outputs) and the negatives, and their gradients */
+		final float[] inputs;
+		final float[] outputs;
+		final float[] negOutputs;
+		final float[] inputGrads;
+		final float[] outputGrads;
+		final float[] negGrads;
+		/** batch size x negative samples gradients of the shared negatives */
+		final float[] negScores;
 
-		Worker(int randomSeed, int iter, int id) {
+		Worker(int randomSeed, int iter, int id, PairRingBuffer ring) {
 			this.nextRandom = randomSeed;
 			this.iter = iter;
 			this.id = id;
+			this.ring = ring;
+			final int b = config.miniBatchSize > 1 ? config.miniBatchSize : 0;
+			final int k = b > 0 ? config.negativeSamples : 0;
+			this.batchWords = new int[b];
+			this.batchContexts = new int[b];
+			this.negatives = new int[k];
+			this.inputs = new float[b * layer1_size];
+			this.outputs = new float[b * layer1_size];
+			this.negOutputs = new float[k * layer1_size];
+			this.inputGrads = new float[b * layer1_size];
+			this.outputGrads = new float[b * layer1_size];
+			this.negGrads = new float[k * layer1_size];
+			this.negScores = new float[b * k];
 		}
 
 		@Override
 		public void run() throws InterruptedException, IOException {
-			RandomAccessFile file = new RandomAccessFile(trainFile, "r");
-			long start_offset = fileSize / config.numThreads * id;
-			long end_offset = fileSize / config.numThreads * (id + 1);
-			if (end_offset > fileSize) end_offset = fileSize;
-			file.seek(start_offset);
-			while (file.readChar() != '\n') {} // index to the start of a line
-			while (true) {
-				if (file.getFilePointer() >= fileSize - 1 || file.getFilePointer() > end_offset) break;
-				String s = file.readLine();
-				String word = s.split(" ")[0];
-				if (word.length() > MAX_STRING) word = word.substring(0, MAX_STRING);
-				String context = s.split(" ")[1];
-				if (context.length() > MAX_STRING) context = context.substring(0, MAX_STRING);
-				// update alpha
-				if (wordCount - lastWordCount > LEARNING_RATE_UPDATE_FREQUENCY) updateAlpha(iter);
-				VocabFunctions V = new VocabFunctions();
-				int wrdi = V.searchVocab(wv, word);
-				int ctxi = V.searchVocab(cv, context);
-				if (wrdi < 0 || ctxi < 0) continue;
-				wordCount++;
-				if (config.downSampleRate > 0) {
-					VocabWord wvw = wv.vocab.get(wrdi);
-					double random = (Math.sqrt(wvw.cn / (config.downSampleRate * wv.wordCount)) + 1) *
-							(config.downSampleRate * wv.wordCount) / wvw.cn;
-					nextRandom = incrementRandom(nextRandom);
-					if (random < (nextRandom & 0xFFFF) / (double) 65_536)
-						continue;
-					VocabWord cvw = cv.vocab.get(ctxi);
-					random = (Math.sqrt(cvw.cn / (config.downSampleRate * cv.wordCount)) + 1) *
-							(config.downSampleRate * cv.wordCount) / cvw.cn;
-					nextRandom = incrementRandom(nextRandom);
-					if (random < (nextRandom & 0xFFFF) / (double) 65_536) continue;
+			try (PairReader reader = ring != null ? ring.reader() : source.open(id, config.numThreads)) {
+				int n;
+				while ((n = reader.read(words, contexts)) > 0) {
+					for (int i = 0; i < n; i++) trainPair(words[i], contexts[i]);
 				}
-				// handle negative sampling
-				handleNegativeSampling(wrdi, ctxi);
-				// Learn weights input -> hidden
-				for (int c = 0; c < layer1_size; c++) syn0[wrdi][c] += neu1e[c];
+			} catch (IOException | RuntimeException e) {
+				if (ring != null) ring.abort(); // do not leave the readers waiting on a full ring
+				throw e;
 			}
+			trainBatch();
+			monitor.add(id, wordCount - lastWordCount, dropped);
 			actualWordCount.addAndGet(wordCount - lastWordCount);
-			file.close();
+		}
+
+		/** train a single (word, context) pair */
+		private void trainPair(int wrdi, int ctxi) {
+			// update alpha
+			if (wordCount - lastWordCount > LEARNING_RATE_UPDATE_FREQUENCY) updateAlpha(iter);
+			wordCount++;
+			if (config.downSampleRate > 0) {
+				long wcn = wv.count(wrdi);
+				double random = (Math.sqrt(wcn / (config.downSampleRate * wv.wordCount())) + 1) *
+						(config.downSampleRate * wv.wordCount()) / wcn;
+				nextRandom = incrementRandom(nextRandom);
+				if (random < (nextRandom & 0xFFFF) / (double) 65_536) {
+					dropped++;
+					return;
+				}
+				long ccn = cv.count(ctxi);
+				random = (Math.sqrt(ccn / (config.downSampleRate * cv.wordCount())) + 1) *
+						(config.downSampleRate * cv.wordCount()) / ccn;
+				nextRandom = incrementRandom(nextRandom);
+				if (random < (nextRandom & 0xFFFF) / (double) 65_536) {
+					dropped++;
+					return;
+				}
+			}
+			if (batchWords.length > 0) {
+				batchWords[batchCount] = wrdi;
+				batchContexts[batchCount] = ctxi;
+				if (++batchCount == batchWords.length) trainBatch();
+				return;
+			}
+			Arrays.fill(neu1e, 0);
+			// handle hierarchical softmax
+			if (tree != null) handleHierarchicalSoftmax(wrdi, ctxi);
+			// handle negative sampling
+			if (config.negativeSamples > 0) handleNegativeSampling(wrdi, ctxi);
+			// Learn weights input -> hidden
+			syn0.add(wrdi, 1, neu1e);
 		}
 
 		/** handle learning rate updating */
 		private void updateAlpha(int iter) {
-			int currentActual = actualWordCount.addAndGet(wordCount - lastWordCount);
+			monitor.add(id, wordCount - lastWordCount, dropped);
+			dropped = 0;
+			long currentActual = actualWordCount.addAndGet(wordCount - lastWordCount);
 			lastWordCount = wordCount;
 			// Update learning rate, keep a minimum to avoid it degrades to zero
 			alpha = config.initialLearningRate * Math.max(1 - currentActual / (double) (config.iterations * numTrainedTokens), 0.0001);
+			long next = nextCheckpoint.get();
+			if (currentActual >= next && nextCheckpoint.compareAndSet(next, currentActual + config.checkpointInterval))
+				checkpointer.trySnapshot(config.iterations - iter, currentActual, alpha);
+		}
+
+		/** handle hierarchical softmax, one binary decision per inner node on the path of the context */
+		private void handleHierarchicalSoftmax(int wrdi, int ctxi) {
+			final int[] paths = tree.paths();
+			for (int p = tree.start(ctxi), end = tree.end(ctxi); p < end; p++) {
+				final int l2 = HuffmanTree.node(paths[p]);
+				double f = syn0.dot(wrdi, syn1, l2);
+				if (f <= -MAX_EXP || f >= MAX_EXP) continue;
+				final double g = gradient(f, 1 - HuffmanTree.code(paths[p])) * alpha;
+				syn1.addTo(l2, (float) g, neu1e);
+				syn1.add(l2, (float) g, syn0, wrdi);
+			}
 		}
 
 		/** handle negative sampling */
@@ -257,32 +441,81 @@ public class Word2VecfTrainer {
 					label = 1;
 				} else {
 					nextRandom = incrementRandom(nextRandom);
-					target = unitable[(int) (((nextRandom >> 16) % TABLE_SIZE) + TABLE_SIZE) % TABLE_SIZE];
-					if (target == 0)
-						target = (int) (((nextRandom % (cv.vocabSize - 1)) + cv.vocabSize - 1) % (cv.vocabSize - 1)) + 1;
+					target = sampler.sample(nextRandom);
 					if (target == ctxi) continue;
 					label = 0;
 				}
 				int l2 = target;
-				double f = 0;
-				for (int c = 0; c < layer1_size; c++) f += syn0[wrdi][c] * syn1neg[l2][c];
-				final double g;
-				if (f > MAX_EXP) g = (label - 1) * alpha;
-				else if (f < -MAX_EXP) g = (label - 0) * alpha;
-				else g = (label - EXP_TABLE[(int) ((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * alpha;
-				for (int c = 0; c < layer1_size; c++) neu1e[c] = g * syn1neg[l2][c];
-				for (int c = 0; c < layer1_size; c++) syn1neg[l2][c] = g * syn0[wrdi][c];
+				double f = syn0.dot(wrdi, syn1neg, l2);
+				final double g = gradient(f, label) * alpha;
+				syn1neg.addTo(l2, (float) g, neu1e);
+				syn1neg.add(l2, (float) g, syn0, wrdi);
+			}
+		}
+
+		/**
+		 * Train the pending pairs of the mini-batch against one set of negatives shared by the whole batch. The rows are
+		 * gathered into local buffers, so that the scores and both gradients become small matrix-matrix products over
+		 * cache-resident data, then the accumulated gradients are scattered back (Hogwild, as the per-pair updates).
+		 */
+		private void trainBatch() {
+			final int b = batchCount;
+			if (b == 0) return;
+			batchCount = 0;
+			final int d = layer1_size;
+			final int k = negatives.length;
+			for (int n = 0; n < k; n++) {
+				nextRandom = incrementRandom(nextRandom);
+				negatives[n] = sampler.sample(nextRandom);
+			}
+			for (int i = 0; i < b; i++) {
+				syn0.getRow(batchWords[i], inputs, i * d);
+				syn1neg.getRow(batchContexts[i], outputs, i * d);
+			}
+			for (int n = 0; n < k; n++) syn1neg.getRow(negatives[n], negOutputs, n * d);
+			Arrays.fill(inputGrads, 0, b * d, 0);
+			Arrays.fill(outputGrads, 0, b * d, 0);
+			Arrays.fill(negGrads, 0, k * d, 0);
+			// positive pairs
+			for (int i = 0; i < b; i++) {
+				float g = (float) (gradient(VectorMath.dot(inputs, i * d, outputs, i * d, d), 1) * alpha);
+				VectorMath.axpy(g, outputs, i * d, inputGrads, i * d, d);
+				VectorMath.axpy(g, inputs, i * d, outputGrads, i * d, d);
+			}
+			// shared negatives: G = g(inputs x negOutputs^T), inputGrads += G x negOutputs, negGrads += G^T x inputs
+			for (int i = 0; i < b; i++) {
+				for (int n = 0; n < k; n++) {
+					if (negatives[n] == batchContexts[i]) negScores[i * k + n] = 0;
+					else negScores[i * k + n] = (float) (gradient(VectorMath.dot(inputs, i * d, negOutputs, n * d, d), 0) * alpha);
+				}
+			}
+			for (int i = 0; i < b; i++) {
+				for (int n = 0; n < k; n++) {
+					float g = negScores[i * k + n];
+					if (g != 0) VectorMath.axpy(g, negOutputs, n * d, inputGrads, i * d, d);
+				}
+			}
+			for (int n = 0; n < k; n++) {
+				for (int i = 0; i < b; i++) {
+					float g = negScores[i * k + n];
+					if (g != 0) VectorMath.axpy(g, inputs, i * d, negGrads, n * d, d);
+				}
+			}
+			for (int i = 0; i < b; i++) {
+				syn0.add(batchWords[i], 1, inputGrads, i * d);
+				syn1neg.add(batchContexts[i], 1, outputGrads, i * d);
 			}
+			for (int n = 0; n < k; n++) syn1neg.add(negatives[n], 1, negGrads, n * d);
 		}
 
 	}
 
-	/** @return {@link Vocabulary} load vocabulary file from file */
-	private Vocabulary readVocab(String vocabFile) {
+	/** @return {@link FrozenVocabulary} load vocabulary file from file */
+	static FrozenVocabulary readVocab(String vocabFile) {
 		VocabFunctions V = new VocabFunctions();
 		Vocabulary v = V.createVocabulary();
 		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(vocabFile))));
+			BufferedReader br = CompressedStreams.openReader(vocabFile);
 			String line;
 			while ((line = br.readLine()) != null) {
 				String[] words = line.split(" ");
@@ -293,7 +526,7 @@ public class Word2VecfTrainer {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return v;
+		return v.freeze();
 	}
 
 }
@@ -2,8 +2,12 @@ package com.isaac.word2vecf;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.corpus.PairSource;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by zhanghao on 18/4/17.
@@ -21,6 +25,19 @@ public class Word2VecfTrainerBuilder {
 	private Double downSampleRate;
 
 	private Integer debugMode = 2;
+	private Boolean offHeap;
+	private String compiledFile;
+	private Boolean legacyUnigramTable;
+	private Integer miniBatchSize;
+	private String checkpointDirectory;
+	private Long checkpointInterval;
+	private Boolean resumeFromCheckpoint;
+	private Integer pipelineReaders;
+	private final List<TrainingListener> listeners = new ArrayList<>();
+	private Boolean jmx;
+	private Long reportInterval;
+	private Boolean hierarchicalSoftmax;
+	private Boolean compressedCorpus;
 
 	private Word2VecfTrainerBuilder(){}
 
@@ -36,6 +53,11 @@ public class Word2VecfTrainerBuilder {
 		return this;
 	}
 
+	/** @return number of iterations assigned, 1 by default */
+	int getNumIterations() {
+		return MoreObjects.firstNonNull(iterations, 1);
+	}
+
 	public Word2VecfTrainerBuilder useNumThreads(int numThreads) {
 		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
 		this.numThreads = numThreads;
@@ -72,8 +94,133 @@ public class Word2VecfTrainerBuilder {
 		return this;
 	}
 
-	/** @return {@link Word2Vecf} */
+	/**
+	 * keep syn0 and syn1neg outside of the Java heap, required when vocabulary size * layer size exceeds 2^31; the
+	 * trained model is returned as ND4J arrays, which hold at most 2^31 elements each, so such a model must be
+	 * trained by {@link #trainToFiles}
+	 */
+	public Word2VecfTrainerBuilder useOffHeapStorage(boolean offHeap) {
+		this.offHeap = offHeap;
+		return this;
+	}
+
+	/**
+	 * train from the training file compiled to vocabulary ids, the file is (re)compiled from the training file if it
+	 * is missing or was compiled with other vocabularies, and is reused by later iterations and runs
+	 */
+	public Word2VecfTrainerBuilder useCompiledCorpus(String compiledFile) {
+		Preconditions.checkArgument(compiledFile != null && !compiledFile.isEmpty(), "compiled file path must be assigned");
+		this.compiledFile = compiledFile;
+		return this;
+	}
+
+	/**
+	 * store the compiled training file in independently deflated blocks of pairs, which the workers decompress in
+	 * parallel, instead of raw ids. A compressed (gzip, bzip2, zstandard...) training file is always trained this way,
+	 * compiled to trainFile.blocks unless a compiled file is assigned
+	 */
+	public Word2VecfTrainerBuilder useCompressedCorpus(boolean compressedCorpus) {
+		this.compressedCorpus = compressedCorpus;
+		return this;
+	}
+
+	/** draw negative samples from the 1e8 entries unigram table of word2vecf instead of the alias table, for reproducibility */
+	public Word2VecfTrainerBuilder useLegacyUnigramTable(boolean legacyUnigramTable) {
+		this.legacyUnigramTable = legacyUnigramTable;
+		return this;
+	}
+
+	/**
+	 * update batches of consecutive pairs against one set of negative samples shared by the batch, which turns the
+	 * updates into small matrix-matrix products, 1 (default) trains pair by pair with fresh negatives
+	 */
+	public Word2VecfTrainerBuilder useMiniBatch(int miniBatchSize) {
+		Preconditions.checkArgument(miniBatchSize > 0, "mini-batch size must be positive");
+		this.miniBatchSize = miniBatchSize;
+		return this;
+	}
+
+	/**
+	 * write snapshots of the training state to the directory in the background, at the end of every iteration and,
+	 * if interval is positive, every interval pairs
+	 */
+	public Word2VecfTrainerBuilder setCheckpoint(String directory, long interval) {
+		Preconditions.checkArgument(directory != null && !directory.isEmpty(), "checkpoint directory must be assigned");
+		Preconditions.checkArgument(interval >= 0, "checkpoint interval must be non-negative");
+		this.checkpointDirectory = directory;
+		this.checkpointInterval = interval;
+		return this;
+	}
+
+	/**
+	 * restore weights, learning rate and word count from the latest snapshot of the checkpoint directory if there is
+	 * one, an iteration interrupted in the middle is trained again from its beginning with the restored schedule
+	 */
+	public Word2VecfTrainerBuilder resumeFromCheckpoint(boolean resumeFromCheckpoint) {
+		this.resumeFromCheckpoint = resumeFromCheckpoint;
+		return this;
+	}
+
+	/**
+	 * decode the training data on separate reader threads, which publish id batches to the trainer threads through a
+	 * lock-free ring, numThreads stays the number of trainer threads, 0 (default) lets each trainer read its own shard
+	 */
+	public Word2VecfTrainerBuilder usePipelineReaders(int pipelineReaders) {
+		Preconditions.checkArgument(pipelineReaders >= 0, "pipeline readers must be non-negative");
+		this.pipelineReaders = pipelineReaders;
+		return this;
+	}
+
+	/** notify the listener of the training metrics at every report interval and when training finishes */
+	public Word2VecfTrainerBuilder addTrainingListener(TrainingListener listener) {
+		Preconditions.checkNotNull(listener, "training listener must be assigned");
+		this.listeners.add(listener);
+		return this;
+	}
+
+	/** expose the training metrics as an MXBean of the platform MBean server while training (default true) */
+	public Word2VecfTrainerBuilder useJmx(boolean jmx) {
+		this.jmx = jmx;
+		return this;
+	}
+
+	/** seconds between two reports of the training metrics (default 10) */
+	public Word2VecfTrainerBuilder setReportInterval(long seconds) {
+		Preconditions.checkArgument(seconds > 0, "report interval must be positive");
+		this.reportInterval = seconds;
+		return this;
+	}
+
+	/**
+	 * predict the contexts with a hierarchical softmax over a Huffman tree of the context vocabulary, which costs
+	 * O(log |cv|) dot products per pair. Negative samples keep their default of 15 on top of it, since the context
+	 * vectors of the model are only learned by negative sampling: with useNegativeSamples(0) the model is trained
+	 * faster but its context vectors stay zero, so only its word vectors are meaningful
+	 */
+	public Word2VecfTrainerBuilder useHierarchicalSoftmax(boolean hierarchicalSoftmax) {
+		this.hierarchicalSoftmax = hierarchicalSoftmax;
+		return this;
+	}
+
+	/** @return {@link Word2Vecf}, rejected before training if vocabulary size * layer size exceeds an ND4J array */
 	public Word2Vecf train(String trainFile, String wordVocabFile, String contextVocabFile) {
+		checkFiles(trainFile, wordVocabFile, contextVocabFile);
+		return new Word2VecfTrainer(trainFile, wordVocabFile, contextVocabFile, buildConfigs()).train();
+	}
+
+	/**
+	 * train, then write the normalized word and context vectors to binary files as
+	 * {@link com.isaac.word2vecf.utils.WordVectorSerializer#saveWord2VecfToBinary} does, a row at a time, for models
+	 * beyond the size of an ND4J array trained with {@link #useOffHeapStorage(boolean)}
+	 */
+	public void trainToFiles(String trainFile, String wordVocabFile, String contextVocabFile, String wordToPath, String contextToPath) {
+		checkFiles(trainFile, wordVocabFile, contextVocabFile);
+		Preconditions.checkArgument(wordToPath != null && contextToPath != null, "paths to store the vectors must be assigned");
+		new Word2VecfTrainer(trainFile, wordVocabFile, contextVocabFile, buildConfigs()).train(wordToPath, contextToPath);
+	}
+
+	/** check that the training and vocabulary files exist */
+	private static void checkFiles(String trainFile, String wordVocabFile, String contextVocabFile) {
 		Preconditions.checkArgument(trainFile != null && !trainFile.isEmpty(), "training file must be assigned");
 		if (!(new File(trainFile).exists()))
 			throw new IllegalArgumentException("training file not found");
@@ -83,26 +230,66 @@ public class Word2VecfTrainerBuilder {
 		Preconditions.checkArgument(contextVocabFile != null && !contextVocabFile.isEmpty(), "context vocabulary file must be assigned");
 		if (!(new File(contextVocabFile).exists()))
 			throw new IllegalArgumentException("context vocabulary file not found");
+	}
+
+	/**
+	 * train the pairs of the source, e.g. a {@link com.isaac.word2vecf.corpus.StreamingPairSource} fed while training
+	 * by {@link Word2VecfPipeline}, whose ids index the given vocabularies
+	 * @return {@link Word2Vecf}
+	 */
+	public Word2Vecf train(PairSource source, FrozenVocabulary wv, FrozenVocabulary cv) {
+		Preconditions.checkNotNull(source, "pair source must be assigned");
+		Preconditions.checkArgument(wv != null && wv.size() > 0, "word vocabulary must not be empty");
+		Preconditions.checkArgument(cv != null && cv.size() > 0, "context vocabulary must not be empty");
+		return new Word2VecfTrainer(source, wv, cv, buildConfigs()).train();
+	}
+
+	/** @return {@link Word2VecfConfigs} of the assigned parameters, defaults filled in */
+	private Word2VecfConfigs buildConfigs() {
 		this.layerSize = MoreObjects.firstNonNull(layerSize, 300);
 		this.iterations = MoreObjects.firstNonNull(iterations, 1);
 		this.numThreads = MoreObjects.firstNonNull(numThreads, Runtime.getRuntime().availableProcessors());
 		this.minFrequency = MoreObjects.firstNonNull(minFrequency, 50);
 		this.initialLearningRate = MoreObjects.firstNonNull(initialLearningRate, 0.025);
+		this.hierarchicalSoftmax = MoreObjects.firstNonNull(hierarchicalSoftmax, false);
 		this.negativeSamples = MoreObjects.firstNonNull(negativeSamples, 15);
 		this.downSampleRate = MoreObjects.firstNonNull(downSampleRate, 0.001);
 		this.debugMode = MoreObjects.firstNonNull(debugMode, 2);
-		return new Word2VecfTrainer(trainFile, wordVocabFile, contextVocabFile,
-				new Word2VecfConfigs(
-						layerSize,
-						iterations,
-						numThreads,
-						minFrequency,
-						initialLearningRate,
-						negativeSamples,
-						downSampleRate,
-						debugMode
-				)
-		).train();
+		this.offHeap = MoreObjects.firstNonNull(offHeap, false);
+		this.legacyUnigramTable = MoreObjects.firstNonNull(legacyUnigramTable, false);
+		this.miniBatchSize = MoreObjects.firstNonNull(miniBatchSize, 1);
+		this.checkpointInterval = MoreObjects.firstNonNull(checkpointInterval, 0L);
+		this.resumeFromCheckpoint = MoreObjects.firstNonNull(resumeFromCheckpoint, false);
+		this.pipelineReaders = MoreObjects.firstNonNull(pipelineReaders, 0);
+		this.jmx = MoreObjects.firstNonNull(jmx, true);
+		this.reportInterval = MoreObjects.firstNonNull(reportInterval, 10L);
+		this.compressedCorpus = MoreObjects.firstNonNull(compressedCorpus, false);
+		Preconditions.checkArgument(!resumeFromCheckpoint || checkpointDirectory != null, "resuming requires a checkpoint directory");
+		Preconditions.checkArgument(negativeSamples > 0 || hierarchicalSoftmax, "negative samples are required without hierarchical softmax");
+		Preconditions.checkArgument(!hierarchicalSoftmax || miniBatchSize == 1, "hierarchical softmax does not support mini-batches");
+		return new Word2VecfConfigs(
+				layerSize,
+				iterations,
+				numThreads,
+				minFrequency,
+				initialLearningRate,
+				negativeSamples,
+				downSampleRate,
+				debugMode,
+				offHeap,
+				compiledFile,
+				legacyUnigramTable,
+				miniBatchSize,
+				checkpointDirectory,
+				checkpointInterval,
+				resumeFromCheckpoint,
+				pipelineReaders,
+				new ArrayList<>(listeners),
+				jmx,
+				reportInterval,
+				hierarchicalSoftmax,
+				compressedCorpus
+		);
 	}
 
 	/** @return {@link Word2VecfTrainerBuilder} for training a model */
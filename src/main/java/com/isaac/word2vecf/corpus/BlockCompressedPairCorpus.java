@@ -0,0 +1,290 @@
+package com.isaac.word2vecf.corpus;
+
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Training file compiled to vocabulary ids as {@link CompiledPairCorpus}, stored in independently compressed blocks of
+ * BLOCK_PAIRS pairs so that the workers can seek to and decompress their own blocks in parallel. Each block holds the
+ * word and context ids of its pairs as varints, which keeps the frequent words of the low ids on one byte, deflated.
+ * Layout (little endian):
+ *   header: magic (int), version (int), number of pairs (long), word vocab size (int), context vocab size (int),
+ *           vocabulary fingerprint (long), length and last modification time of the training file (longs),
+ *           pairs per block (int), number of blocks (int), index offset (long)
+ *   body:   deflated blocks
+ *   index:  offset of every block and the index offset (long)
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class BlockCompressedPairCorpus implements PairSource {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(BlockCompressedPairCorpus.class);
+
+	private static final int MAGIC = 0x5732565A; // "W2VZ"
+	private static final int VERSION = 2;
+	static final int HEADER_SIZE = 64;
+	/** Number of pairs of a block, a shard is made of whole blocks */
+	static final int BLOCK_PAIRS = 1 << 16;
+	/** Longest encoding of a pair, two 5 bytes varints */
+	private static final int MAX_PAIR_SIZE = 10;
+	private static final ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+
+	private final String file;
+	private final long numPairs;
+	private final int blockPairs;
+	/** offsets of the blocks in the file, followed by the end of the last block */
+	private final long[] offsets;
+
+	private BlockCompressedPairCorpus(String file, long numPairs, int blockPairs, long[] offsets) {
+		this.file = file;
+		this.numPairs = numPairs;
+		this.blockPairs = blockPairs;
+		this.offsets = offsets;
+	}
+
+	/** @return number of pairs stored */
+	public long numPairs() { return numPairs; }
+
+	/** @return number of blocks */
+	public int numBlocks() { return offsets.length - 1; }
+
+	/**
+	 * Open the compressed file, compile it from the textual training file, compressed or not, first if it is missing,
+	 * was built from different vocabularies or the training file changed since
+	 */
+	public static BlockCompressedPairCorpus openOrCompile(String compressedFile, String trainFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		BlockCompressedPairCorpus corpus = open(compressedFile, trainFile, wv, cv);
+		if (corpus != null) return corpus;
+		compile(trainFile, compressedFile, wv, cv);
+		return open(compressedFile, trainFile, wv, cv);
+	}
+
+	/**
+	 * @return {@link BlockCompressedPairCorpus}, null if the file is missing, does not match the vocabularies or was
+	 * compiled from another version of the training file
+	 */
+	public static BlockCompressedPairCorpus open(String compressedFile, String trainFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		File f = new File(compressedFile);
+		if (!f.exists() || f.length() < HEADER_SIZE) return null;
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				log.warn(String.format("%s is not a block compressed pair file of version %d", compressedFile, VERSION));
+				return null;
+			}
+			long numPairs = header.getLong();
+			if (header.getInt() != wv.size() || header.getInt() != cv.size() || header.getLong() != CompiledPairCorpus.fingerprint(wv, cv)) {
+				log.info(String.format("%s was compiled with different vocabularies", compressedFile));
+				return null;
+			}
+			if (!CompiledPairCorpus.matchesSource(header, trainFile)) {
+				log.info(String.format("%s was compiled from another version of %s", compressedFile, trainFile));
+				return null;
+			}
+			int blockPairs = header.getInt();
+			int numBlocks = header.getInt();
+			long indexOffset = header.getLong();
+			if (channel.size() != indexOffset + (numBlocks + 1L) * Long.BYTES) {
+				log.warn(String.format("%s is truncated", compressedFile));
+				return null;
+			}
+			ByteBuffer index = read(channel, indexOffset, (numBlocks + 1) * Long.BYTES);
+			long[] offsets = new long[numBlocks + 1];
+			for (int i = 0; i <= numBlocks; i++) offsets[i] = index.getLong();
+			return new BlockCompressedPairCorpus(compressedFile, numPairs, blockPairs, offsets);
+		}
+	}
+
+	/** Compile the textual training file to blocks of (word id, context id) pairs, pairs out of vocabularies are dropped */
+	public static void compile(String trainFile, String compressedFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		File source = new File(trainFile);
+		long sourceLength = source.length(), sourceModified = source.lastModified();
+		try (FileChannel channel = FileChannel.open(Paths.get(compressedFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(HEADER_SIZE);
+			BlockWriter writer = new BlockWriter(channel);
+			long dropped;
+			try {
+				dropped = CompiledPairCorpus.parse(trainFile, wv, cv, writer::add);
+				writer.flush();
+			} finally {
+				writer.deflater.end();
+			}
+			long indexOffset = channel.position();
+			ByteBuffer index = ByteBuffer.allocate((writer.numBlocks + 1) * Long.BYTES).order(byteOrder);
+			for (long offset : Arrays.copyOf(writer.offsets, writer.numBlocks + 1)) index.putLong(offset);
+			index.flip();
+			while (index.hasRemaining()) channel.write(index);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			header.putInt(MAGIC).putInt(VERSION).putLong(writer.numPairs).putInt(wv.size()).putInt(cv.size())
+					.putLong(CompiledPairCorpus.fingerprint(wv, cv)).putLong(sourceLength).putLong(sourceModified).putInt(BLOCK_PAIRS).putInt(writer.numBlocks).putLong(indexOffset);
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining()) channel.write(header);
+			channel.truncate(indexOffset + (writer.numBlocks + 1L) * Long.BYTES);
+			log.info(String.format("Compiled %s to %s: %d pairs in %d blocks of %d bytes on average, %d pairs out of vocabulary dropped",
+					trainFile, compressedFile, writer.numPairs, writer.numBlocks,
+					writer.numBlocks == 0 ? 0 : (indexOffset - HEADER_SIZE) / writer.numBlocks, dropped));
+		}
+	}
+
+	/** @return buffer of the length bytes of the channel at offset */
+	private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) throw new EOFException("unexpected end of file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Encodes the pairs as varints and writes them a deflated block at a time */
+	private static class BlockWriter {
+		private final FileChannel channel;
+		private final Deflater deflater = new Deflater();
+		private final byte[] block = new byte[BLOCK_PAIRS * MAX_PAIR_SIZE];
+		private byte[] compressed = new byte[BLOCK_PAIRS * MAX_PAIR_SIZE];
+		private int length;
+		private int pairs;
+		long numPairs;
+		int numBlocks;
+		long[] offsets = new long[1024];
+
+		BlockWriter(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.offsets[0] = channel.position();
+		}
+
+		void add(int word, int context) throws IOException {
+			length = putVarint(block, length, word);
+			length = putVarint(block, length, context);
+			numPairs++;
+			if (++pairs == BLOCK_PAIRS) flush();
+		}
+
+		/** compress and write the pending pairs as a block */
+		void flush() throws IOException {
+			if (pairs == 0) return;
+			deflater.reset();
+			deflater.setInput(block, 0, length);
+			deflater.finish();
+			int size = 0;
+			while (!deflater.finished()) {
+				if (size == compressed.length) compressed = Arrays.copyOf(compressed, size << 1);
+				size += deflater.deflate(compressed, size, compressed.length - size);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, size);
+			while (buffer.hasRemaining()) channel.write(buffer);
+			if (++numBlocks == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length << 1);
+			offsets[numBlocks] = offsets[numBlocks - 1] + size;
+			length = 0;
+			pairs = 0;
+		}
+	}
+
+	/** @return position after the varint of the non negative value written at position */
+	static int putVarint(byte[] bytes, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte) value;
+		return position;
+	}
+
+	@Override
+	public PairReader open(int shard, int numShards) throws IOException {
+		long start = (long) numBlocks() * shard / numShards;
+		long end = (long) numBlocks() * (shard + 1) / numShards;
+		return new Reader((int) start, (int) end);
+	}
+
+	/** Reads and inflates the blocks [start, end) */
+	private class Reader implements PairReader {
+		private final FileChannel channel;
+		private final Inflater inflater = new Inflater();
+		private byte[] compressed = new byte[0];
+		private final byte[] block = new byte[blockPairs * MAX_PAIR_SIZE];
+		private int length;
+		private int position;
+		private int next;
+		private final int end;
+
+		Reader(int start, int end) throws IOException {
+			this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+			this.next = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read(int[] words, int[] contexts) throws IOException {
+			int n = 0;
+			while (n < words.length) {
+				if (position == length && !fill()) break;
+				words[n] = nextVarint();
+				contexts[n] = nextVarint();
+				n++;
+			}
+			return n;
+		}
+
+		/** @return value of the varint at position, which is moved after it */
+		private int nextVarint() {
+			int value = 0, shift = 0, b;
+			do {
+				b = block[position++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		/** @return false if no block left */
+		private boolean fill() throws IOException {
+			if (next >= end) return false;
+			int size = (int) (offsets[next + 1] - offsets[next]);
+			if (compressed.length < size) compressed = new byte[size];
+			ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, size);
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, offsets[next] + buffer.position());
+				if (read < 0) throw new EOFException(String.format("unexpected end of %s", file));
+			}
+			inflater.reset();
+			inflater.setInput(compressed, 0, size);
+			try {
+				length = 0;
+				while (!inflater.finished()) {
+					int inflated = inflater.inflate(block, length, block.length - length);
+					if (inflated == 0 && (inflater.needsInput() || length == block.length)) throw new DataFormatException("truncated block");
+					length += inflated;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(String.format("corrupted block %d of %s", next, file), e);
+			}
+			position = 0;
+			next++;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			channel.close();
+		}
+	}
+}
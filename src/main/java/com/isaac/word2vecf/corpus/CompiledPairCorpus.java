@@ -0,0 +1,226 @@
+package com.isaac.word2vecf.corpus;
+
+import com.isaac.word2vecf.utils.CompressedStreams;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Training file compiled to vocabulary ids, so that the text is parsed and looked up only once instead of in every
+ * iteration. Layout (little endian):
+ *   header: magic (int), version (int), number of pairs (long), word vocab size (int), context vocab size (int),
+ *           vocabulary fingerprint (long), length and last modification time of the training file (longs)
+ *   body:   (word id, context id) int pairs
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class CompiledPairCorpus implements PairSource {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(CompiledPairCorpus.class);
+
+	private static final int MAGIC = 0x57325646; // "W2VF"
+	private static final int VERSION = 2;
+	static final int HEADER_SIZE = 48;
+	static final int PAIR_SIZE = 8;
+	/** Number of pairs read from the file at once */
+	private static final int BUFFER_PAIRS = 1 << 16;
+	private static final ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+
+	private final String file;
+	private final long numPairs;
+
+	private CompiledPairCorpus(String file, long numPairs) {
+		this.file = file;
+		this.numPairs = numPairs;
+	}
+
+	/** @return number of pairs stored */
+	public long numPairs() { return numPairs; }
+
+	/**
+	 * Open the compiled file, compile it from the textual training file first if it is missing, was built from
+	 * different vocabularies or the training file changed since
+	 */
+	public static CompiledPairCorpus openOrCompile(String compiledFile, String trainFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		CompiledPairCorpus corpus = open(compiledFile, trainFile, wv, cv);
+		if (corpus != null) return corpus;
+		compile(trainFile, compiledFile, wv, cv);
+		return open(compiledFile, trainFile, wv, cv);
+	}
+
+	/**
+	 * @return {@link CompiledPairCorpus}, null if the file is missing, does not match the vocabularies or was compiled
+	 * from another version of the training file
+	 */
+	public static CompiledPairCorpus open(String compiledFile, String trainFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		File f = new File(compiledFile);
+		if (!f.exists() || f.length() < HEADER_SIZE) return null;
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				log.warn(String.format("%s is not a compiled pair file of version %d", compiledFile, VERSION));
+				return null;
+			}
+			long numPairs = header.getLong();
+			if (header.getInt() != wv.size() || header.getInt() != cv.size() || header.getLong() != fingerprint(wv, cv)) {
+				log.info(String.format("%s was compiled with different vocabularies", compiledFile));
+				return null;
+			}
+			if (!matchesSource(header, trainFile)) {
+				log.info(String.format("%s was compiled from another version of %s", compiledFile, trainFile));
+				return null;
+			}
+			if (channel.size() != HEADER_SIZE + numPairs * PAIR_SIZE) {
+				log.warn(String.format("%s is truncated", compiledFile));
+				return null;
+			}
+			return new CompiledPairCorpus(compiledFile, numPairs);
+		}
+	}
+
+	/** Compile the textual training file to (word id, context id) pairs, pairs out of vocabularies are dropped */
+	public static void compile(String trainFile, String compiledFile, FrozenVocabulary wv, FrozenVocabulary cv) throws IOException {
+		long[] numPairs = new long[1];
+		long dropped;
+		File source = new File(trainFile);
+		long sourceLength = source.length(), sourceModified = source.lastModified();
+		try (FileChannel channel = FileChannel.open(Paths.get(compiledFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_PAIRS * PAIR_SIZE).order(byteOrder);
+			channel.position(HEADER_SIZE);
+			dropped = parse(trainFile, wv, cv, (wrdi, ctxi) -> {
+				if (!buffer.hasRemaining()) write(channel, buffer);
+				buffer.putInt(wrdi).putInt(ctxi);
+				numPairs[0]++;
+			});
+			write(channel, buffer);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			header.putInt(MAGIC).putInt(VERSION).putLong(numPairs[0]).putInt(wv.size()).putInt(cv.size()).putLong(fingerprint(wv, cv))
+					.putLong(sourceLength).putLong(sourceModified);
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining()) channel.write(header);
+		}
+		log.info(String.format("Compiled %s to %s: %d pairs, %d pairs out of vocabulary dropped", trainFile, compiledFile, numPairs[0], dropped));
+	}
+
+	/** Visitor of the pairs of the training file */
+	interface PairVisitor {
+		void visit(int word, int context) throws IOException;
+	}
+
+	/**
+	 * parse the textual training file, compressed or not, visiting the ids of the pairs in the vocabularies
+	 * @return number of pairs out of vocabularies
+	 */
+	static long parse(String trainFile, FrozenVocabulary wv, FrozenVocabulary cv, PairVisitor visitor) throws IOException {
+		long dropped = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedStreams.open(trainFile), StandardCharsets.UTF_8), 1 << 20)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int index = line.indexOf(' ');
+				if (index < 0) continue;
+				int end = line.indexOf(' ', index + 1);
+				String word = line.substring(0, Math.min(index, TextPairSource.MAX_STRING));
+				String context = end < 0 ? line.substring(index + 1) : line.substring(index + 1, end);
+				if (context.length() > TextPairSource.MAX_STRING) context = context.substring(0, TextPairSource.MAX_STRING);
+				int wrdi = wv.indexOf(word);
+				int ctxi = cv.indexOf(context);
+				if (wrdi < 0 || ctxi < 0) {
+					dropped++;
+					continue;
+				}
+				visitor.visit(wrdi, ctxi);
+			}
+		}
+		return dropped;
+	}
+
+	/** flush the buffer to channel */
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/** @return whether the next two longs of the header, the length and modification time of a training file, match trainFile */
+	static boolean matchesSource(ByteBuffer header, String trainFile) {
+		File source = new File(trainFile);
+		long length = header.getLong(), modified = header.getLong();
+		return length == source.length() && modified == source.lastModified();
+	}
+
+	/** @return fingerprint of the id assignment of both vocabularies */
+	static long fingerprint(FrozenVocabulary wv, FrozenVocabulary cv) {
+		long h = 1125899906842597L;
+		for (int i = 0; i < wv.size(); i++) h = 31 * h + wv.word(i).hashCode();
+		for (int i = 0; i < cv.size(); i++) h = 31 * h + cv.word(i).hashCode();
+		return h;
+	}
+
+	@Override
+	public PairReader open(int shard, int numShards) throws IOException {
+		long start = numPairs * shard / numShards;
+		long end = numPairs * (shard + 1) / numShards;
+		return new Reader(start, end);
+	}
+
+	/** Reads the pairs [start, end) through a direct buffer */
+	private class Reader implements PairReader {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_PAIRS * PAIR_SIZE).order(byteOrder);
+		private long position;
+		private final long end;
+
+		Reader(long start, long end) throws IOException {
+			this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+			this.position = start;
+			this.end = end;
+			buffer.limit(0);
+		}
+
+		@Override
+		public int read(int[] words, int[] contexts) throws IOException {
+			int n = 0;
+			while (n < words.length) {
+				if (!buffer.hasRemaining() && !fill()) break;
+				words[n] = buffer.getInt();
+				contexts[n] = buffer.getInt();
+				n++;
+			}
+			return n;
+		}
+
+		/** @return false if no pair left */
+		private boolean fill() throws IOException {
+			if (position >= end) return false;
+			int pairs = (int) Math.min(BUFFER_PAIRS, end - position);
+			buffer.clear();
+			buffer.limit(pairs * PAIR_SIZE);
+			long offset = HEADER_SIZE + position * PAIR_SIZE;
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, offset + buffer.position());
+				if (read < 0) throw new EOFException(String.format("unexpected end of %s", file));
+			}
+			buffer.flip();
+			position += pairs;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.isaac.word2vecf.corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a byte range of a file directly out of memory-mapped segments. A line belongs to the range in
+ * which its first byte lies, so readers of adjacent ranges never share or split a line. Java's NIO only allows
+ * mapping up to 2GB at once, larger files are mapped segment by segment while scanning.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class MappedLineReader implements Closeable {
+	private final static byte LINE_SEPARATOR = 10;
+	/** default size of each mapped segment */
+	private final static long SEGMENT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	/** size of each mapped segment */
+	private final long segmentSize;
+	private final long fileSize;
+	/** end of the range, lines starting at or after it belong to the next range */
+	private final long end;
+	/** current mapped segment and its offset in the file */
+	private MappedByteBuffer segment;
+	private long segmentOffset;
+	/** file position of the next byte to read */
+	private long position;
+	/** bytes of the last line read */
+	private byte[] line = new byte[256];
+
+	public MappedLineReader(String file, long start, long end) throws IOException {
+		this(file, start, end, SEGMENT_SIZE);
+	}
+
+	/** constructor mapping segments of given size, small ones exercise the lines crossing segments */
+	MappedLineReader(String file, long start, long end, long segmentSize) throws IOException {
+		this.segmentSize = segmentSize;
+		this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		this.fileSize = channel.size();
+		this.end = Math.min(end, fileSize);
+		this.position = Math.max(start, 0);
+		if (position > 0 && position < this.end) {
+			// the line containing start - 1 belongs to the previous range, skip to the beginning of the next line
+			position--;
+			int c;
+			while ((c = next()) >= 0 && c != LINE_SEPARATOR) {}
+		}
+	}
+
+	/** @return length of the next line (without line separator) copied into {@link #line()}, -1 if range exhausted */
+	public int readLine() throws IOException {
+		if (position >= end) return -1;
+		int length = 0;
+		int c;
+		while ((c = next()) >= 0 && c != LINE_SEPARATOR) {
+			if (length == line.length) line = Arrays.copyOf(line, line.length * 2);
+			line[length++] = (byte) c;
+		}
+		if (length > 0 && line[length - 1] == '\r') length--;
+		return length;
+	}
+
+	/** @return buffer holding the bytes of the last line read */
+	public byte[] line() { return line; }
+
+	/** @return next byte of the file as an unsigned value, -1 at the end of file */
+	private int next() throws IOException {
+		if (position >= fileSize) return -1;
+		if (segment == null || position >= segmentOffset + segment.limit()) {
+			segmentOffset = position;
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentOffset, Math.min(segmentSize, fileSize - segmentOffset));
+		}
+		return segment.get((int) (position++ - segmentOffset)) & 0xFF;
+	}
+
+	@Override
+	public void close() throws IOException {
+		segment = null;
+		channel.close();
+	}
+}
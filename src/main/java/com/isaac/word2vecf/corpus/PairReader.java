@@ -0,0 +1,17 @@
+package com.isaac.word2vecf.corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads (word, context) pairs of one shard as vocabulary ids, pairs whose word or context is not in the
+ * vocabularies are skipped by the reader.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public interface PairReader extends Closeable {
+	/** @return number of pairs copied into words and contexts (at most their length), 0 when the shard is exhausted */
+	int read(int[] words, int[] contexts) throws IOException;
+}
@@ -0,0 +1,142 @@
+package com.isaac.word2vecf.corpus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer ring of pair batches, used to hand decoded ids from reader threads
+ * to trainer threads. The batches are allocated once, producers and consumers copy ids in and out of the slots.
+ * Each slot carries a sequence number telling whether it is free for the producer of a position or filled for its
+ * consumer, positions are claimed by CAS on the head and tail counters (D. Vyukov's bounded MPMC queue).
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class PairRingBuffer {
+	/** spins before yielding, yields before parking when the ring is full or empty */
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+	private static final long PARK_NANOS = 10_000;
+
+	private final int capacity;
+	private final int mask;
+	private final int batchSize;
+	private final AtomicLongArray sequences;
+	private final int[][] words;
+	private final int[][] contexts;
+	private final int[] sizes;
+	/** next position to fill and to drain */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	/** no more batches will be put, aborted: pending batches are dropped too */
+	private volatile boolean closed;
+	private volatile boolean aborted;
+
+	/** @param capacity number of batches, rounded up to a power of 2 */
+	public PairRingBuffer(int capacity, int batchSize) {
+		this.capacity = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.mask = this.capacity - 1;
+		this.batchSize = batchSize;
+		this.sequences = new AtomicLongArray(this.capacity);
+		this.words = new int[this.capacity][batchSize];
+		this.contexts = new int[this.capacity][batchSize];
+		this.sizes = new int[this.capacity];
+		for (int i = 0; i < this.capacity; i++) sequences.set(i, i);
+	}
+
+	/** @return maximal number of pairs of a batch */
+	public int batchSize() { return batchSize; }
+
+	/**
+	 * Copy n pairs (at most batchSize) into the next free slot, waiting while the ring is full
+	 * @return false if the ring was aborted
+	 */
+	public boolean put(int[] w, int[] c, int n) throws InterruptedException {
+		int idle = 0;
+		while (!aborted) {
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long dif = sequences.get(index) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					System.arraycopy(w, 0, words[index], 0, n);
+					System.arraycopy(c, 0, contexts[index], 0, n);
+					sizes[index] = n;
+					sequences.lazySet(index, pos + 1); // publish to the consumer of pos
+					return true;
+				}
+			} else if (dif < 0) {
+				idle = backOff(idle); // full
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the pairs of the next filled slot out, waiting while the ring is empty
+	 * @return number of pairs copied, 0 once the ring is closed and drained, or aborted
+	 */
+	public int take(int[] w, int[] c) throws InterruptedException {
+		int idle = 0;
+		while (!aborted) {
+			boolean wasClosed = closed; // read before the slot, so every batch put before close is visible
+			long pos = head.get();
+			int index = (int) (pos & mask);
+			long dif = sequences.get(index) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					int n = sizes[index];
+					System.arraycopy(words[index], 0, w, 0, n);
+					System.arraycopy(contexts[index], 0, c, 0, n);
+					sequences.lazySet(index, pos + capacity); // free for the producer of pos + capacity
+					return n;
+				}
+			} else if (dif < 0) {
+				if (wasClosed) return 0; // empty
+				idle = backOff(idle);
+			}
+		}
+		return 0;
+	}
+
+	/** Signal that all producers are done, consumers stop once the ring is drained */
+	public void close() { closed = true; }
+
+	/** Stop producers and consumers immediately, e.g. after one of them failed */
+	public void abort() { aborted = true; }
+
+	private static int backOff(int idle) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (idle < SPINS) {
+			// busy spin
+		} else if (idle < SPINS + YIELDS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return idle + 1;
+	}
+
+	/** @return {@link PairReader} consuming this ring, the arrays passed to read must hold a whole batch */
+	public PairReader reader() {
+		return new PairReader() {
+			@Override
+			public int read(int[] w, int[] c) throws IOException {
+				if (w.length < batchSize) throw new IllegalArgumentException("buffer smaller than a batch of the ring");
+				try {
+					return take(w, c);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for pairs");
+				}
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+}
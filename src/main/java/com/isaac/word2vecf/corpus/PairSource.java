@@ -0,0 +1,15 @@
+package com.isaac.word2vecf.corpus;
+
+import java.io.IOException;
+
+/**
+ * Training data of word2vecf, split into shards so that every worker thread reads its own part.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public interface PairSource {
+	/** @return {@link PairReader} over the given shard, shards are disjoint and together cover the whole data */
+	PairReader open(int shard, int numShards) throws IOException;
+}
@@ -0,0 +1,200 @@
+package com.isaac.word2vecf.corpus;
+
+import com.isaac.word2vecf.vocabulary.ExtractionImpl;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PairSource} fed while training by producer threads, e.g. extracting the pairs of sentences parsed in memory,
+ * through a bounded {@link PairRingBuffer}: producers encode the (word, context) pairs to vocabulary ids and block
+ * while the ring is full, the readers of the first iteration drain it. With retain, the readers keep the batches they
+ * drained as varints (a few bytes per pair) so that the following iterations replay them sharded by batch, without
+ * retain the pairs can only be trained once.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class StreamingPairSource implements PairSource {
+	/** Longest encoding of a pair, two 5 bytes varints */
+	private static final int MAX_PAIR_SIZE = 10;
+
+	private final FrozenVocabulary wv;
+	private final FrozenVocabulary cv;
+	private final PairRingBuffer ring;
+	private final boolean retain;
+	/** batches drained by the first iteration, varint encoded */
+	private final List<byte[]> retained = Collections.synchronizedList(new ArrayList<>());
+	/** number of readers of the first iteration, which drain the ring, opened and closed so far */
+	private int streamShards;
+	private int opened;
+	private int closed;
+	private volatile boolean aborted;
+	private final AtomicLong numPairs = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param capacity number of batches the ring holds
+	 * @param batchSize pairs of a batch, at most the number of pairs the trainer reads at once (1024)
+	 */
+	public StreamingPairSource(FrozenVocabulary wv, FrozenVocabulary cv, int capacity, int batchSize, boolean retain) {
+		this.wv = wv;
+		this.cv = cv;
+		this.ring = new PairRingBuffer(capacity, batchSize);
+		this.retain = retain;
+	}
+
+	/** @return {@link Producer} of one thread, flushed before the source is closed */
+	public Producer producer() {
+		return new Producer();
+	}
+
+	/** Signal that all producers are flushed, the first iteration ends once the ring is drained */
+	public void close() { ring.close(); }
+
+	/** Stop producers and readers immediately, e.g. after one of them failed */
+	public void abort() {
+		aborted = true;
+		ring.abort();
+	}
+
+	/** @return whether the source was aborted, producers waiting for their own input should stop */
+	public boolean isAborted() { return aborted; }
+
+	/** @return number of pairs produced so far */
+	public long numPairs() { return numPairs.get(); }
+
+	/** @return number of pairs dropped so far because their word or context is out of the vocabularies */
+	public long dropped() { return dropped.get(); }
+
+	@Override
+	public PairReader open(int shard, int numShards) throws IOException {
+		synchronized (this) {
+			if (aborted) throw new IOException("pair stream aborted");
+			if (streamShards == 0) streamShards = numShards;
+			if (opened < streamShards) {
+				opened++;
+				return new StreamReader();
+			}
+			if (!retain) throw new IllegalStateException("streamed pairs are not retained, they can only be trained once");
+			if (closed < streamShards) throw new IllegalStateException("pairs replayed before the stream is drained");
+		}
+		int start = (int) ((long) retained.size() * shard / numShards);
+		int end = (int) ((long) retained.size() * (shard + 1) / numShards);
+		return new ReplayReader(retained.subList(start, end));
+	}
+
+	/** Encodes the pairs of one producer thread to ids and puts them into the ring a batch at a time */
+	public class Producer implements ExtractionImpl.PairVisitor {
+		private final int[] words = new int[ring.batchSize()];
+		private final int[] contexts = new int[ring.batchSize()];
+		private int n;
+
+		private Producer() {}
+
+		/** add the pair, words longer than {@link TextPairSource#MAX_STRING} are truncated as in the training file */
+		@Override
+		public void visit(String word, String context, String other) throws IOException {
+			if (word.length() > TextPairSource.MAX_STRING) word = word.substring(0, TextPairSource.MAX_STRING);
+			if (context.length() > TextPairSource.MAX_STRING) context = context.substring(0, TextPairSource.MAX_STRING);
+			int wrdi = wv.indexOf(word);
+			int ctxi = cv.indexOf(context);
+			if (wrdi < 0 || ctxi < 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+			words[n] = wrdi;
+			contexts[n] = ctxi;
+			if (++n == words.length) flush();
+		}
+
+		/** put the pending pairs into the ring, waiting while it is full */
+		public void flush() throws IOException {
+			if (n == 0) return;
+			try {
+				if (!ring.put(words, contexts, n)) throw new IOException("pair stream aborted");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the trainer");
+			}
+			numPairs.addAndGet(n);
+			n = 0;
+		}
+	}
+
+	/** Drains the ring during the first iteration, retaining the batches if required */
+	private class StreamReader implements PairReader {
+		private final PairReader reader = ring.reader();
+		private final byte[] encoded = new byte[ring.batchSize() * MAX_PAIR_SIZE];
+
+		@Override
+		public int read(int[] words, int[] contexts) throws IOException {
+			int n = reader.read(words, contexts);
+			if (retain && n > 0) {
+				int length = 0;
+				for (int i = 0; i < n; i++) {
+					length = BlockCompressedPairCorpus.putVarint(encoded, length, words[i]);
+					length = BlockCompressedPairCorpus.putVarint(encoded, length, contexts[i]);
+				}
+				retained.add(Arrays.copyOf(encoded, length));
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			synchronized (StreamingPairSource.this) {
+				closed++;
+			}
+		}
+	}
+
+	/** Decodes retained batches in the following iterations */
+	private static class ReplayReader implements PairReader {
+		private final List<byte[]> batches;
+		private int next;
+		private byte[] batch = new byte[0];
+		private int position;
+
+		ReplayReader(List<byte[]> batches) {
+			this.batches = batches;
+		}
+
+		@Override
+		public int read(int[] words, int[] contexts) {
+			int n = 0;
+			while (n < words.length) {
+				if (position == batch.length) {
+					if (next == batches.size()) break;
+					batch = batches.get(next++);
+					position = 0;
+				}
+				words[n] = nextVarint();
+				contexts[n] = nextVarint();
+				n++;
+			}
+			return n;
+		}
+
+		/** @return value of the varint at position, which is moved after it */
+		private int nextVarint() {
+			int value = 0, shift = 0, b;
+			do {
+				b = batch[position++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
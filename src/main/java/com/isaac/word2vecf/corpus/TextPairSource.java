@@ -0,0 +1,82 @@
+package com.isaac.word2vecf.corpus;
+
+import com.isaac.word2vecf.utils.Common;
+import com.isaac.word2vecf.vocabulary.FrozenVocabulary;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link PairSource} of the textual training file, each line is a space delimited "word context" pair. The file is
+ * read through {@link MappedLineReader}, each shard being a line-aligned byte range of the mapping.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class TextPairSource implements PairSource {
+	/** A string longer than this are trunked the first part */
+	public static final int MAX_STRING = 100;
+
+	private final String trainFile;
+	private final long fileSize;
+	private final FrozenVocabulary wv;
+	private final FrozenVocabulary cv;
+
+	public TextPairSource(String trainFile, FrozenVocabulary wv, FrozenVocabulary cv) {
+		this.trainFile = trainFile;
+		this.fileSize = Common.getFileSize(trainFile);
+		this.wv = wv;
+		this.cv = cv;
+	}
+
+	@Override
+	public PairReader open(int shard, int numShards) throws IOException {
+		return new Reader(shard, numShards);
+	}
+
+	/** Reads the lines starting in byte range [fileSize / numShards * shard, fileSize / numShards * (shard + 1)) */
+	private class Reader implements PairReader {
+		private final MappedLineReader file;
+
+		Reader(int shard, int numShards) throws IOException {
+			this.file = new MappedLineReader(trainFile, fileSize / numShards * shard,
+					shard == numShards - 1 ? fileSize : fileSize / numShards * (shard + 1));
+		}
+
+		@Override
+		public int read(int[] words, int[] contexts) throws IOException {
+			int n = 0;
+			int length;
+			while (n < words.length && (length = file.readLine()) >= 0) {
+				byte[] line = file.line();
+				int index = indexOf(line, 0, length);
+				if (index < 0) continue;
+				int end = indexOf(line, index + 1, length);
+				if (end < 0) end = length;
+				String word = new String(line, 0, index, StandardCharsets.UTF_8);
+				if (word.length() > MAX_STRING) word = word.substring(0, MAX_STRING);
+				String context = new String(line, index + 1, end - index - 1, StandardCharsets.UTF_8);
+				if (context.length() > MAX_STRING) context = context.substring(0, MAX_STRING);
+				int wrdi = wv.indexOf(word);
+				int ctxi = cv.indexOf(context);
+				if (wrdi < 0 || ctxi < 0) continue;
+				words[n] = wrdi;
+				contexts[n] = ctxi;
+				n++;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/** @return index of the first space in line[from, to), -1 if not found */
+	static int indexOf(byte[] line, int from, int to) {
+		for (int i = from; i < to; i++) if (line[i] == ' ') return i;
+		return -1;
+	}
+}
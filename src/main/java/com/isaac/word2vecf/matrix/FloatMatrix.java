@@ -0,0 +1,147 @@
+package com.isaac.word2vecf.matrix;
+
+import com.google.common.base.Preconditions;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dense single-precision matrix stored row-major in one contiguous block, rows are addressed by offset
+ * (row * columns). It replaces the jagged double[][] layout used by the trainer, halving the memory and
+ * keeping each row in consecutive memory for the inner training loops.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public abstract class FloatMatrix {
+	/** Largest number of elements a single Java array is able to hold */
+	static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	/** Number of elements copied at once from an {@link INDArray} */
+	private static final int COPY_TILE = 1 << 22;
+
+	final int rows;
+	final int columns;
+
+	FloatMatrix(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+	/** @return {@link FloatMatrix} of zeros, off-heap if required or if the element count does not fit a Java array */
+	public static FloatMatrix create(int rows, int columns, boolean offHeap) {
+		if (offHeap || (long) rows * columns > MAX_ARRAY_SIZE) return new OffHeapFloatMatrix(rows, columns);
+		return new HeapFloatMatrix(rows, columns);
+	}
+
+	/** @return {@link FloatMatrix} copy of given {@link INDArray}, read a tile of rows at a time */
+	public static FloatMatrix of(INDArray array, boolean offHeap) {
+		FloatMatrix matrix = create(array.rows(), array.columns(), offHeap);
+		int columns = matrix.columns;
+		int tileRows = Math.max(1, COPY_TILE / Math.max(1, columns));
+		float[] row = new float[columns];
+		for (int start = 0; start < matrix.rows; start += tileRows) {
+			int end = Math.min(matrix.rows, start + tileRows);
+			float[] tile = array.get(NDArrayIndex.interval(start, end), NDArrayIndex.all()).dup('c').data().asFloat();
+			for (int i = 0; i < end - start; i++) {
+				System.arraycopy(tile, i * columns, row, 0, columns);
+				matrix.putRow(start + i, row);
+			}
+		}
+		return matrix;
+	}
+
+	/**
+	 * @return true if given {@link INDArray} can be viewed as a {@link FloatMatrix} without a copy: row-major,
+	 * single-precision and spanning its whole buffer, as a view of another array does not
+	 */
+	public static boolean isViewable(INDArray array) {
+		return array.ordering() == 'c' && array.data().dataType() == DataBuffer.Type.FLOAT
+				&& array.data().length() == (long) array.rows() * array.columns();
+	}
+
+	/** @return {@link FloatMatrix} sharing the buffer of given row-major float {@link INDArray}, which must be viewable */
+	public static FloatMatrix view(INDArray array) { return new NDArrayFloatMatrix(array); }
+
+	/**
+	 * @return read only {@link FloatMatrix} mapped on the row-major floats stored in channel from position, read
+	 * from the page cache on demand rather than loaded; the mapping outlives the channel
+	 */
+	public static FloatMatrix map(FileChannel channel, long position, int rows, int columns, ByteOrder order) throws IOException {
+		return OffHeapFloatMatrix.mapped(channel, position, rows, columns, order);
+	}
+
+	/** @return number of rows */
+	public int rows() { return rows; }
+
+	/** @return number of columns */
+	public int columns() { return columns; }
+
+	/** @return offset of the first element of given row */
+	public long offset(int row) { return (long) row * columns; }
+
+	/** @return size of the stored elements in bytes */
+	public long sizeInBytes() { return (long) rows * columns * Float.BYTES; }
+
+	/** @return value at (row, column) */
+	public abstract float get(int row, int column);
+
+	/** Set value at (row, column) */
+	public abstract void put(int row, int column, float value);
+
+	/** Copy given row to dst */
+	public void getRow(int row, float[] dst) { getRow(row, dst, 0); }
+
+	/** Copy given row to dst[dstOffset, dstOffset + columns) */
+	public abstract void getRow(int row, float[] dst, int dstOffset);
+
+	/** Copy src to given row */
+	public abstract void putRow(int row, float[] src);
+
+	/** @return dot product of given row and the row of other matrix */
+	public abstract float dot(int row, FloatMatrix other, int otherRow);
+
+	/** @return dot product of given row and x[0, columns) */
+	public abstract float dot(int row, float[] x);
+
+	/** this[row] += alpha * x */
+	public void add(int row, float alpha, float[] x) { add(row, alpha, x, 0); }
+
+	/** this[row] += alpha * x[xOffset, xOffset + columns) */
+	public abstract void add(int row, float alpha, float[] x, int xOffset);
+
+	/** this[row] += alpha * other[otherRow] */
+	public abstract void add(int row, float alpha, FloatMatrix other, int otherRow);
+
+	/** y += alpha * this[row] */
+	public abstract void addTo(int row, float alpha, float[] y);
+
+	/** @return true if this matrix fits an ND4J array, which is int-indexed, see {@link #toINDArray()} */
+	public boolean fitsINDArray() { return (long) rows * columns <= MAX_ARRAY_SIZE; }
+
+	/**
+	 * @return {@link INDArray} copy of this matrix, built whole on the heap of ND4J: an off-heap matrix larger than an
+	 * ND4J array must be read by rows instead
+	 */
+	public INDArray toINDArray() {
+		Preconditions.checkState(fitsINDArray(),
+				String.format("%d x %d matrix exceeds the %d elements of an ND4J array, read it by rows instead", rows, columns, MAX_ARRAY_SIZE));
+		INDArray array = Nd4j.create(rows, columns);
+		float[] buffer = new float[columns];
+		for (int i = 0; i < rows; i++) {
+			getRow(i, buffer);
+			array.putRow(i, Nd4j.create(buffer));
+		}
+		return array;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[%d x %d, %d MB]", getClass().getSimpleName(), rows, columns, sizeInBytes() >> 20);
+	}
+}
@@ -0,0 +1,71 @@
+package com.isaac.word2vecf.matrix;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * {@link FloatMatrix} backed by a single float[], limited to {@link FloatMatrix#MAX_ARRAY_SIZE} elements.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class HeapFloatMatrix extends FloatMatrix {
+	final float[] data;
+
+	HeapFloatMatrix(int rows, int columns) {
+		super(rows, columns);
+		if ((long) rows * columns > MAX_ARRAY_SIZE)
+			throw new IllegalArgumentException(String.format("%d x %d exceeds the capacity of a heap matrix, use off-heap storage", rows, columns));
+		this.data = new float[rows * columns];
+	}
+
+	/** @return the backing array, rows stored consecutively */
+	public float[] data() { return data; }
+
+	@Override
+	public float get(int row, int column) { return data[row * columns + column]; }
+
+	@Override
+	public void put(int row, int column, float value) { data[row * columns + column] = value; }
+
+	@Override
+	public void getRow(int row, float[] dst, int dstOffset) { System.arraycopy(data, row * columns, dst, dstOffset, columns); }
+
+	@Override
+	public void putRow(int row, float[] src) { System.arraycopy(src, 0, data, row * columns, columns); }
+
+	@Override
+	public float dot(int row, FloatMatrix other, int otherRow) {
+		final int a = row * columns;
+		if (other instanceof HeapFloatMatrix) return VectorMath.dot(data, a, ((HeapFloatMatrix) other).data, otherRow * columns, columns);
+		float f = 0;
+		for (int c = 0; c < columns; c++) f += data[a + c] * other.get(otherRow, c);
+		return f;
+	}
+
+	@Override
+	public float dot(int row, float[] x) { return VectorMath.dot(data, row * columns, x, 0, columns); }
+
+	@Override
+	public void add(int row, float alpha, float[] x, int xOffset) {
+		VectorMath.axpy(alpha, x, xOffset, data, row * columns, columns);
+	}
+
+	@Override
+	public void add(int row, float alpha, FloatMatrix other, int otherRow) {
+		final int a = row * columns;
+		if (other instanceof HeapFloatMatrix) VectorMath.axpy(alpha, ((HeapFloatMatrix) other).data, otherRow * columns, data, a, columns);
+		else for (int c = 0; c < columns; c++) data[a + c] += alpha * other.get(otherRow, c);
+	}
+
+	@Override
+	public void addTo(int row, float alpha, float[] y) {
+		VectorMath.axpy(alpha, data, row * columns, y, 0, columns);
+	}
+
+	@Override
+	public INDArray toINDArray() {
+		return Nd4j.create(data, new int[] {rows, columns});
+	}
+}
@@ -0,0 +1,75 @@
+package com.isaac.word2vecf.matrix;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * {@link FloatMatrix} view of the buffer of a row-major float {@link INDArray}, sharing its memory instead of
+ * copying it, e.g. to search the vectors of a model without holding them twice. Writes go to the array.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class NDArrayFloatMatrix extends FloatMatrix {
+	private final DataBuffer data;
+
+	NDArrayFloatMatrix(INDArray array) {
+		super(array.rows(), array.columns());
+		if (!isViewable(array))
+			throw new IllegalArgumentException("only the whole buffer of a row-major float array can be viewed as a matrix");
+		this.data = array.data();
+	}
+
+	@Override
+	public float get(int row, int column) { return data.getFloat(offset(row) + column); }
+
+	@Override
+	public void put(int row, int column, float value) { data.put(offset(row) + column, value); }
+
+	@Override
+	public void getRow(int row, float[] dst, int dstOffset) {
+		final long a = offset(row);
+		for (int c = 0; c < columns; c++) dst[dstOffset + c] = data.getFloat(a + c);
+	}
+
+	@Override
+	public void putRow(int row, float[] src) {
+		final long a = offset(row);
+		for (int c = 0; c < columns; c++) data.put(a + c, src[c]);
+	}
+
+	@Override
+	public float dot(int row, FloatMatrix other, int otherRow) {
+		final long a = offset(row);
+		float f = 0;
+		for (int c = 0; c < columns; c++) f += data.getFloat(a + c) * other.get(otherRow, c);
+		return f;
+	}
+
+	@Override
+	public float dot(int row, float[] x) {
+		final long a = offset(row);
+		float f = 0;
+		for (int c = 0; c < columns; c++) f += data.getFloat(a + c) * x[c];
+		return f;
+	}
+
+	@Override
+	public void add(int row, float alpha, float[] x, int xOffset) {
+		final long a = offset(row);
+		for (int c = 0; c < columns; c++) data.put(a + c, data.getFloat(a + c) + alpha * x[xOffset + c]);
+	}
+
+	@Override
+	public void add(int row, float alpha, FloatMatrix other, int otherRow) {
+		final long a = offset(row);
+		for (int c = 0; c < columns; c++) data.put(a + c, data.getFloat(a + c) + alpha * other.get(otherRow, c));
+	}
+
+	@Override
+	public void addTo(int row, float alpha, float[] y) {
+		final long a = offset(row);
+		for (int c = 0; c < columns; c++) y[c] += alpha * data.getFloat(a + c);
+	}
+}
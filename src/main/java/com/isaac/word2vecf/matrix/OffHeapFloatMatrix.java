@@ -0,0 +1,125 @@
+package com.isaac.word2vecf.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link FloatMatrix} stored outside of the Java heap in direct buffers. A single buffer is int-indexed, so the
+ * matrix is split into chunks of whole rows, which lets rows * columns exceed 2^31 elements while every row stays
+ * contiguous. The chunks may also be mapped read only on a file, see {@link FloatMatrix#map}.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class OffHeapFloatMatrix extends FloatMatrix {
+	/** number of rows per chunk, and the chunks holding them */
+	private final int rowsPerChunk;
+	private final FloatBuffer[] chunks;
+
+	OffHeapFloatMatrix(int rows, int columns) {
+		super(rows, columns);
+		this.rowsPerChunk = rowsPerChunk(columns);
+		this.chunks = new FloatBuffer[numChunks(rows, rowsPerChunk)];
+		for (int i = 0; i < chunks.length; i++) {
+			int chunkRows = Math.min(rowsPerChunk, rows - i * rowsPerChunk);
+			chunks[i] = ByteBuffer.allocateDirect(Math.max(chunkRows, 0) * columns * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	private OffHeapFloatMatrix(int rows, int columns, FloatBuffer[] chunks) {
+		super(rows, columns);
+		this.rowsPerChunk = rowsPerChunk(columns);
+		this.chunks = chunks;
+	}
+
+	/** @return read only matrix mapped on the rows stored from position of the channel in given byte order */
+	static OffHeapFloatMatrix mapped(FileChannel channel, long position, int rows, int columns, ByteOrder order) throws IOException {
+		int rowsPerChunk = rowsPerChunk(columns);
+		FloatBuffer[] chunks = new FloatBuffer[numChunks(rows, rowsPerChunk)];
+		for (int i = 0; i < chunks.length; i++) {
+			long chunkBytes = (long) Math.max(Math.min(rowsPerChunk, rows - i * rowsPerChunk), 0) * columns * Float.BYTES;
+			long chunkPosition = position + (long) i * rowsPerChunk * columns * Float.BYTES;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkPosition, chunkBytes).order(order).asFloatBuffer();
+		}
+		return new OffHeapFloatMatrix(rows, columns, chunks);
+	}
+
+	/** @return number of whole rows fitting an int-indexed buffer of bytes */
+	private static int rowsPerChunk(int columns) { return (int) Math.max(1, (Integer.MAX_VALUE / Float.BYTES) / Math.max(columns, 1)); }
+
+	private static int numChunks(int rows, int rowsPerChunk) { return Math.max((rows + rowsPerChunk - 1) / rowsPerChunk, 1); }
+
+	/** @return chunk holding the given row */
+	private FloatBuffer chunk(int row) { return chunks[row / rowsPerChunk]; }
+
+	/** @return offset of the given row inside its chunk */
+	private int base(int row) { return (row % rowsPerChunk) * columns; }
+
+	@Override
+	public float get(int row, int column) { return chunk(row).get(base(row) + column); }
+
+	@Override
+	public void put(int row, int column, float value) { chunk(row).put(base(row) + column, value); }
+
+	@Override
+	public void getRow(int row, float[] dst, int dstOffset) {
+		final FloatBuffer buf = chunk(row);
+		final int a = base(row);
+		for (int c = 0; c < columns; c++) dst[dstOffset + c] = buf.get(a + c);
+	}
+
+	@Override
+	public void putRow(int row, float[] src) {
+		final FloatBuffer buf = chunk(row);
+		final int a = base(row);
+		for (int c = 0; c < columns; c++) buf.put(a + c, src[c]);
+	}
+
+	@Override
+	public float dot(int row, FloatMatrix other, int otherRow) {
+		final FloatBuffer buf = chunk(row);
+		final int a = base(row);
+		if (other instanceof OffHeapFloatMatrix) {
+			final OffHeapFloatMatrix m = (OffHeapFloatMatrix) other;
+			return VectorMath.dot(buf, a, m.chunk(otherRow), m.base(otherRow), columns);
+		}
+		float f = 0;
+		for (int c = 0; c < columns; c++) f += buf.get(a + c) * other.get(otherRow, c);
+		return f;
+	}
+
+	@Override
+	public float dot(int row, float[] x) {
+		final FloatBuffer buf = chunk(row);
+		final int a = base(row);
+		float f = 0;
+		for (int c = 0; c < columns; c++) f += buf.get(a + c) * x[c];
+		return f;
+	}
+
+	@Override
+	public void add(int row, float alpha, float[] x, int xOffset) {
+		VectorMath.axpy(alpha, x, xOffset, chunk(row), base(row), columns);
+	}
+
+	@Override
+	public void add(int row, float alpha, FloatMatrix other, int otherRow) {
+		final FloatBuffer buf = chunk(row);
+		final int a = base(row);
+		if (other instanceof OffHeapFloatMatrix) {
+			final OffHeapFloatMatrix m = (OffHeapFloatMatrix) other;
+			VectorMath.axpy(alpha, m.chunk(otherRow), m.base(otherRow), buf, a, columns);
+		} else {
+			for (int c = 0; c < columns; c++) buf.put(a + c, buf.get(a + c) + alpha * other.get(otherRow, c));
+		}
+	}
+
+	@Override
+	public void addTo(int row, float alpha, float[] y) {
+		VectorMath.axpy(alpha, chunk(row), base(row), y, 0, columns);
+	}
+}
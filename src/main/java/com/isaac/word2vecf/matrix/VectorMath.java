@@ -0,0 +1,151 @@
+package com.isaac.word2vecf.matrix;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Dot product and axpy kernels of the training and similarity inner loops. The implementation is chosen once at
+ * startup through the system property "word2vecf.kernels": "unrolled" (default) keeps eight independent accumulators
+ * so that the loops are vectorized by the JIT and the FMA chains do not wait on each other, "scalar" is the plain
+ * loop, e.g. for comparing results bit by bit with older runs.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public final class VectorMath {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(VectorMath.class);
+
+	private static final Kernels KERNELS;
+	static {
+		String name = System.getProperty("word2vecf.kernels", "unrolled");
+		KERNELS = "scalar".equalsIgnoreCase(name) ? new ScalarKernels() : new UnrolledKernels();
+		log.info("Vector kernels: " + KERNELS.getClass().getSimpleName());
+	}
+
+	private VectorMath() {}
+
+	/** @return a[aOff, aOff + n) . b[bOff, bOff + n) */
+	public static float dot(float[] a, int aOff, float[] b, int bOff, int n) { return KERNELS.dot(a, aOff, b, bOff, n); }
+
+	/** @return a[aOff, aOff + n) . b[bOff, bOff + n) */
+	public static float dot(FloatBuffer a, int aOff, FloatBuffer b, int bOff, int n) { return KERNELS.dot(a, aOff, b, bOff, n); }
+
+	/** y[yOff, yOff + n) += alpha * x[xOff, xOff + n) */
+	public static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) { KERNELS.axpy(alpha, x, xOff, y, yOff, n); }
+
+	/** y[yOff, yOff + n) += alpha * x[xOff, xOff + n) */
+	public static void axpy(float alpha, FloatBuffer x, int xOff, float[] y, int yOff, int n) { KERNELS.axpy(alpha, x, xOff, y, yOff, n); }
+
+	/** y[yOff, yOff + n) += alpha * x[xOff, xOff + n) */
+	public static void axpy(float alpha, float[] x, int xOff, FloatBuffer y, int yOff, int n) { KERNELS.axpy(alpha, x, xOff, y, yOff, n); }
+
+	/** y[yOff, yOff + n) += alpha * x[xOff, xOff + n) */
+	public static void axpy(float alpha, FloatBuffer x, int xOff, FloatBuffer y, int yOff, int n) { KERNELS.axpy(alpha, x, xOff, y, yOff, n); }
+
+	/** Kernel implementation */
+	interface Kernels {
+		float dot(float[] a, int aOff, float[] b, int bOff, int n);
+		float dot(FloatBuffer a, int aOff, FloatBuffer b, int bOff, int n);
+		void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n);
+		void axpy(float alpha, FloatBuffer x, int xOff, float[] y, int yOff, int n);
+		void axpy(float alpha, float[] x, int xOff, FloatBuffer y, int yOff, int n);
+		void axpy(float alpha, FloatBuffer x, int xOff, FloatBuffer y, int yOff, int n);
+	}
+
+	/** Plain loops */
+	static final class ScalarKernels implements Kernels {
+		@Override
+		public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+			float f = 0;
+			for (int i = 0; i < n; i++) f += a[aOff + i] * b[bOff + i];
+			return f;
+		}
+
+		@Override
+		public float dot(FloatBuffer a, int aOff, FloatBuffer b, int bOff, int n) {
+			float f = 0;
+			for (int i = 0; i < n; i++) f += a.get(aOff + i) * b.get(bOff + i);
+			return f;
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y[yOff + i] += alpha * x[xOff + i];
+		}
+
+		@Override
+		public void axpy(float alpha, FloatBuffer x, int xOff, float[] y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y[yOff + i] += alpha * x.get(xOff + i);
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOff, FloatBuffer y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y.put(yOff + i, y.get(yOff + i) + alpha * x[xOff + i]);
+		}
+
+		@Override
+		public void axpy(float alpha, FloatBuffer x, int xOff, FloatBuffer y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y.put(yOff + i, y.get(yOff + i) + alpha * x.get(xOff + i));
+		}
+	}
+
+	/** Loops unrolled by eight, dot products sum into independent accumulators */
+	static final class UnrolledKernels implements Kernels {
+		@Override
+		public float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+			float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+			int i = 0;
+			for (int bound = n - 7; i < bound; i += 8) {
+				s0 += a[aOff + i] * b[bOff + i];
+				s1 += a[aOff + i + 1] * b[bOff + i + 1];
+				s2 += a[aOff + i + 2] * b[bOff + i + 2];
+				s3 += a[aOff + i + 3] * b[bOff + i + 3];
+				s4 += a[aOff + i + 4] * b[bOff + i + 4];
+				s5 += a[aOff + i + 5] * b[bOff + i + 5];
+				s6 += a[aOff + i + 6] * b[bOff + i + 6];
+				s7 += a[aOff + i + 7] * b[bOff + i + 7];
+			}
+			for (; i < n; i++) s0 += a[aOff + i] * b[bOff + i];
+			return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+		}
+
+		@Override
+		public float dot(FloatBuffer a, int aOff, FloatBuffer b, int bOff, int n) {
+			float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			int i = 0;
+			for (int bound = n - 3; i < bound; i += 4) {
+				s0 += a.get(aOff + i) * b.get(bOff + i);
+				s1 += a.get(aOff + i + 1) * b.get(bOff + i + 1);
+				s2 += a.get(aOff + i + 2) * b.get(bOff + i + 2);
+				s3 += a.get(aOff + i + 3) * b.get(bOff + i + 3);
+			}
+			for (; i < n; i++) s0 += a.get(aOff + i) * b.get(bOff + i);
+			return (s0 + s1) + (s2 + s3);
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+			// independent lanes, vectorized by the JIT as it is
+			for (int i = 0; i < n; i++) y[yOff + i] += alpha * x[xOff + i];
+		}
+
+		@Override
+		public void axpy(float alpha, FloatBuffer x, int xOff, float[] y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y[yOff + i] += alpha * x.get(xOff + i);
+		}
+
+		@Override
+		public void axpy(float alpha, float[] x, int xOff, FloatBuffer y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y.put(yOff + i, y.get(yOff + i) + alpha * x[xOff + i]);
+		}
+
+		@Override
+		public void axpy(float alpha, FloatBuffer x, int xOff, FloatBuffer y, int yOff, int n) {
+			for (int i = 0; i < n; i++) y.put(yOff + i, y.get(yOff + i) + alpha * x.get(xOff + i));
+		}
+	}
+}
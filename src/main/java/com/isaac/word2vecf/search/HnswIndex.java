@@ -0,0 +1,544 @@
+package com.isaac.word2vecf.search;
+
+import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import com.isaac.word2vecf.utils.CallableVoid;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical navigable small world graph (Malkov & Yashunin) over the normalized rows of a model, answering nearest
+ * neighbour queries by cosine similarity in a few thousand vector products instead of a scan of all the rows. Each
+ * node links to at most m neighbours per layer (2m on the bottom layer), chosen by the diversity heuristic of the
+ * paper; nodes reach the upper layers with an exponentially decaying probability. A query descends greedily from the
+ * top layer, then explores the bottom layer keeping the efSearch best candidates: larger m, efConstruction and
+ * efSearch trade memory and speed for recall, which {@link #recall(INDArray, TopK[])} measures against exact results.
+ *
+ * The vectors are not saved with the graph, {@link #load(String, INDArray, boolean)} takes them back from the model.
+ * Vectors the model already normalized are searched in place when their buffer allows it, other vectors are copied
+ * off-heap and normalized. Besides the graph, about 4(2m + 1) bytes per node, each thread querying the index keeps
+ * a visited array of 4 bytes per node, e.g. 12 MB per thread for 3 million words. Layout of the file (little endian):
+ *   header: magic, version, number of nodes, dimension, m, efConstruction, entry point, top layer (ints)
+ *   body:   layer of each node (bytes), bottom layer links (2m + 1 ints per node, count first), upper layer links of
+ *           the nodes above the bottom layer (m + 1 ints per layer, count first)
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class HnswIndex {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(HnswIndex.class);
+
+	private static final int MAGIC = 0x57325648; // "W2VH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+	/** Number of ints read or written at once */
+	private static final int BUFFER_INTS = 1 << 16;
+	/** Number of locks guarding the links of the nodes while building, striped by node */
+	private static final int LOCK_STRIPES = 1 << 12;
+	/** Number of nodes inserted between two progress logs */
+	private static final int LOG_INTERVAL = 100000;
+
+	private final FloatMatrix vectors;
+	private final int m;
+	private final int efConstruction;
+	/** layer of each node, the node is linked on the layers [0, level] */
+	private final byte[] levels;
+	/** bottom layer links, 2m + 1 ints per node: count, then ids */
+	private final int[] links0;
+	/** upper layer links of the nodes above the bottom layer, m + 1 ints per layer from layer 1 */
+	private final int[][] links;
+	private int entryPoint;
+	private int maxLevel;
+	private volatile int efSearch;
+	/** locks of the links while building, null once built since the graph is read only */
+	private Object[] locks;
+	private final ThreadLocal<Searcher> searchers = ThreadLocal.withInitial(() -> new Searcher());
+
+	private HnswIndex(FloatMatrix vectors, int m, int efConstruction, byte[] levels, int[] links0, int[][] links, int entryPoint, int maxLevel) {
+		this.vectors = vectors;
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.levels = levels;
+		this.links0 = links0;
+		this.links = links;
+		this.entryPoint = entryPoint;
+		this.maxLevel = maxLevel;
+		this.efSearch = Math.max(efConstruction / 2, m);
+	}
+
+	/**
+	 * Build the index of the rows of vectors
+	 * @param normalized true if the rows are already normalized, to search them in place
+	 * @param m number of links per node and layer, 2m on the bottom layer, 12 to 48 are typical
+	 * @param efConstruction number of candidates explored to link a new node, at least m
+	 * @param numThreads number of threads inserting the nodes
+	 * @param seed seed of the random layers of the nodes
+	 * @return {@link HnswIndex}
+	 */
+	public static HnswIndex build(INDArray vectors, boolean normalized, int m, int efConstruction, int numThreads, long seed) {
+		Preconditions.checkArgument(m >= 2, "m must be at least 2");
+		Preconditions.checkArgument(efConstruction >= m, "efConstruction must be at least m");
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+		FloatMatrix matrix = normalized(vectors, normalized);
+		int n = matrix.rows();
+		Preconditions.checkArgument((long) n * (2 * m + 1) < Integer.MAX_VALUE, "too many links, decrease m");
+		Random random = new Random(seed);
+		double levelMult = 1 / Math.log(m);
+		byte[] levels = new byte[n];
+		int[][] links = new int[n][];
+		for (int i = 0; i < n; i++) {
+			levels[i] = (byte) Math.min(Byte.MAX_VALUE, (int) (-Math.log(1 - random.nextDouble()) * levelMult));
+			if (levels[i] > 0) links[i] = new int[levels[i] * (m + 1)];
+		}
+		HnswIndex index = new HnswIndex(matrix, m, efConstruction, levels, new int[n * (2 * m + 1)], links, n > 0 ? 0 : -1, n > 0 ? levels[0] : 0);
+		long start = System.currentTimeMillis();
+		index.insertAll(numThreads);
+		log.info(String.format("Built HNSW index of %d vectors (m = %d, efConstruction = %d) in %.2f s", n, m, efConstruction,
+				(System.currentTimeMillis() - start) / 1000.0));
+		return index;
+	}
+
+	/** @return number of indexed vectors */
+	public int size() { return levels.length; }
+
+	/** @return dimension of the indexed vectors */
+	public int dimension() { return vectors.columns(); }
+
+	/** @return number of links per node and layer */
+	public int m() { return m; }
+
+	/** @return number of candidates explored by a query, at least the number of results */
+	public int getEfSearch() { return efSearch; }
+
+	/** Set the number of candidates explored by a query, higher is slower but more accurate */
+	public HnswIndex setEfSearch(int efSearch) {
+		Preconditions.checkArgument(efSearch > 0, "efSearch must be positive");
+		this.efSearch = efSearch;
+		return this;
+	}
+
+	/** @return result, reset and filled with the ids and similarities to query of the result.k() nearest rows found */
+	public TopK search(INDArray query, TopK result) {
+		Preconditions.checkArgument(query.length() == dimension(), String.format("query's dimension(%d) must be the same as the index's(%d)", query.length(), dimension()));
+		return search(query.dup('c').data().asFloat(), result);
+	}
+
+	/** @return result, reset and filled with the ids and similarities to query of the result.k() nearest rows found */
+	public TopK search(float[] query, TopK result) {
+		result.reset(result.k());
+		if (entryPoint < 0 || result.k() == 0) return result;
+		Searcher s = searchers.get();
+		int ep = entryPoint;
+		for (int level = maxLevel; level > 0; level--) ep = greedy(query, ep, level, s);
+		TopK found = searchLayer(query, ep, Math.max(efSearch, result.k()), 0, s);
+		for (int i = 0; i < Math.min(result.k(), found.size()); i++) result.offer(found.id(i), found.score(i));
+		return result;
+	}
+
+	/**
+	 * @param queries one query vector per row
+	 * @param exact exact results of the queries, e.g. computed by a scan of the model
+	 * @return mean fraction of the exact results found by the index for the same number of results
+	 */
+	public double recall(INDArray queries, TopK[] exact) {
+		Preconditions.checkArgument(exact.length == queries.rows(), "one exact result is required per query");
+		double sum = 0;
+		TopK result = new TopK(0);
+		for (int q = 0; q < exact.length; q++) {
+			int[] expected = exact[q].ids();
+			if (expected.length == 0) {
+				sum += 1;
+				continue;
+			}
+			int[] found = search(queries.getRow(q), result.reset(expected.length)).ids();
+			Arrays.sort(found);
+			int hits = 0;
+			for (int id : expected) if (Arrays.binarySearch(found, id) >= 0) hits++;
+			sum += hits / (double) expected.length;
+		}
+		return exact.length == 0 ? 1 : sum / exact.length;
+	}
+
+	/** Save the graph to file, the vectors are not saved */
+	public void save(String file) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			header.putInt(MAGIC).putInt(VERSION).putInt(size()).putInt(dimension()).putInt(m).putInt(efConstruction)
+					.putInt(entryPoint).putInt(maxLevel);
+			header.flip();
+			write(channel, header);
+			write(channel, ByteBuffer.wrap(levels));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_INTS * Integer.BYTES).order(byteOrder);
+			writeInts(channel, buffer, links0);
+			for (int[] upper : links) if (upper != null) writeInts(channel, buffer, upper);
+			buffer.flip();
+			write(channel, buffer);
+		}
+	}
+
+	/**
+	 * Load a graph saved by {@link #save(String)}
+	 * @param vectors the vectors the graph was built from
+	 * @param normalized true if the rows are already normalized, to search them in place
+	 * @return {@link HnswIndex}
+	 */
+	public static HnswIndex load(String file, INDArray vectors, boolean normalized) throws IOException {
+		File f = new File(file);
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(byteOrder);
+			read(channel, header);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException(String.format("%s is not a HNSW index of version %d", file, VERSION));
+			int n = header.getInt();
+			int dimension = header.getInt();
+			if (n != vectors.rows() || dimension != vectors.columns())
+				throw new IOException(String.format("%s indexes %d x %d vectors, not %d x %d", file, n, dimension, vectors.rows(), vectors.columns()));
+			int m = header.getInt();
+			int efConstruction = header.getInt();
+			int entryPoint = header.getInt();
+			int maxLevel = header.getInt();
+			byte[] levels = new byte[n];
+			read(channel, ByteBuffer.wrap(levels));
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_INTS * Integer.BYTES).order(byteOrder);
+			buffer.flip();
+			int[] links0 = readInts(channel, buffer, new int[n * (2 * m + 1)]);
+			int[][] links = new int[n][];
+			for (int i = 0; i < n; i++) if (levels[i] > 0) links[i] = readInts(channel, buffer, new int[levels[i] * (m + 1)]);
+			return new HnswIndex(normalized(vectors, normalized), m, efConstruction, levels, links0, links, entryPoint, maxLevel);
+		}
+	}
+
+	/** @return the normalized vectors in place if possible, otherwise an off-heap copy of them with each row divided by its norm */
+	private static FloatMatrix normalized(INDArray vectors, boolean normalized) {
+		if (normalized && FloatMatrix.isViewable(vectors)) return FloatMatrix.view(vectors);
+		FloatMatrix matrix = FloatMatrix.of(vectors, true);
+		float[] row = new float[matrix.columns()];
+		for (int i = 0; i < matrix.rows(); i++) {
+			matrix.getRow(i, row);
+			float norm = (float) Math.sqrt(matrix.dot(i, row));
+			if (norm == 0) continue;
+			for (int c = 0; c < row.length; c++) row[c] /= norm;
+			matrix.putRow(i, row);
+		}
+		return matrix;
+	}
+
+	/** insert the nodes [1, size) in parallel, node 0 being the initial entry point */
+	private void insertAll(int numThreads) {
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		final AtomicInteger next = new AtomicInteger(1);
+		final ExecutorService ex = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<CallableVoid> tasks = new ArrayList<>();
+			for (int t = 0; t < numThreads; t++) {
+				tasks.add(new CallableVoid() {
+					@Override
+					protected void run() {
+						Searcher s = new Searcher();
+						for (int node = next.getAndIncrement(); node < size(); node = next.getAndIncrement()) {
+							insert(node, s);
+							if (node % LOG_INTERVAL == 0) log.info(String.format("Indexed %d of %d vectors", node, size()));
+						}
+					}
+				});
+			}
+			for (Future<Void> future : ex.invokeAll(tasks)) future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error building HNSW index", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while building HNSW index", e);
+		} finally {
+			ex.shutdownNow();
+			locks = null;
+		}
+	}
+
+	/** link node to its neighbours on its layers, it becomes the entry point if it reaches above the top layer */
+	private void insert(int node, Searcher s) {
+		int level = levels[node];
+		int ep, top;
+		synchronized (this) {
+			ep = entryPoint;
+			top = maxLevel;
+		}
+		float[] query = s.query;
+		vectors.getRow(node, query);
+		for (int l = top; l > level; l--) ep = greedy(query, ep, l, s);
+		for (int l = Math.min(level, top); l >= 0; l--) {
+			TopK found = searchLayer(query, ep, efConstruction, l, s);
+			ep = found.id(0);
+			int count = selectNeighbours(found.ids(), found.scores(), found.size(), maxLinks(l), s.selected);
+			synchronized (lock(node)) {
+				int[] list = links(node, l);
+				int offset = offset(node, l);
+				list[offset] = count;
+				System.arraycopy(s.selected, 0, list, offset + 1, count);
+			}
+			for (int i = 0; i < count; i++) link(s.selected[i], node, l, s);
+		}
+		if (level > top) {
+			synchronized (this) {
+				if (level > maxLevel) {
+					maxLevel = level;
+					entryPoint = node;
+				}
+			}
+		}
+	}
+
+	/** add a link from node to neighbour on given layer, pruning the links of node with the heuristic when it has too many */
+	private void link(int node, int neighbour, int level, Searcher s) {
+		synchronized (lock(node)) {
+			int[] list = links(node, level);
+			int offset = offset(node, level);
+			int count = list[offset];
+			int max = maxLinks(level);
+			if (count < max) {
+				list[offset + 1 + count] = neighbour;
+				list[offset] = count + 1;
+				return;
+			}
+			// candidates sorted by decreasing similarity to node, insertion sort of at most 2m + 1 entries
+			int[] ids = s.candidateIds;
+			float[] scores = s.candidateScores;
+			for (int i = 0; i <= count; i++) {
+				int id = i < count ? list[offset + 1 + i] : neighbour;
+				float score = vectors.dot(node, vectors, id);
+				int j = i;
+				for (; j > 0 && scores[j - 1] < score; j--) {
+					ids[j] = ids[j - 1];
+					scores[j] = scores[j - 1];
+				}
+				ids[j] = id;
+				scores[j] = score;
+			}
+			count = selectNeighbours(ids, scores, count + 1, max, s.pruned);
+			list[offset] = count;
+			System.arraycopy(s.pruned, 0, list, offset + 1, count);
+		}
+	}
+
+	/**
+	 * Keep a candidate only if it is more similar to the base node than to any neighbour kept before it, which links
+	 * the node towards diverse directions rather than to one dense cluster
+	 * @param ids candidates, by decreasing similarity to the base node
+	 * @param scores similarities of the candidates to the base node
+	 * @return number of neighbours written to selected
+	 */
+	private int selectNeighbours(int[] ids, float[] scores, int count, int max, int[] selected) {
+		int n = 0;
+		for (int i = 0; i < count && n < max; i++) {
+			boolean keep = true;
+			for (int j = 0; j < n && keep; j++) keep = vectors.dot(ids[i], vectors, selected[j]) < scores[i];
+			if (keep) selected[n++] = ids[i];
+		}
+		return n;
+	}
+
+	/** @return node reached from ep on given layer by moving to the most similar neighbour while it improves */
+	private int greedy(float[] query, int ep, int level, Searcher s) {
+		float best = vectors.dot(ep, query);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int count = neighbours(ep, level, s.neighbours);
+			for (int i = 0; i < count; i++) {
+				int candidate = s.neighbours[i];
+				float score = vectors.dot(candidate, query);
+				if (score > best) {
+					best = score;
+					ep = candidate;
+					changed = true;
+				}
+			}
+		}
+		return ep;
+	}
+
+	/** @return the ef nodes most similar to query found on given layer from ep, best first */
+	private TopK searchLayer(float[] query, int ep, int ef, int level, Searcher s) {
+		TopK found = s.found.reset(ef);
+		s.startVisit();
+		s.visit(ep);
+		float score = vectors.dot(ep, query);
+		found.offer(ep, score);
+		s.clearCandidates();
+		s.push(ep, score);
+		while (s.numCandidates > 0) {
+			if (s.candidateScores[0] < found.threshold()) break;
+			int candidate = s.pop();
+			int count = neighbours(candidate, level, s.neighbours);
+			for (int i = 0; i < count; i++) {
+				int neighbour = s.neighbours[i];
+				if (!s.visit(neighbour)) continue;
+				score = vectors.dot(neighbour, query);
+				if (score > found.threshold()) {
+					found.offer(neighbour, score);
+					s.push(neighbour, score);
+				}
+			}
+		}
+		return found;
+	}
+
+	/** @return number of links of node on given layer, copied to dst */
+	private int neighbours(int node, int level, int[] dst) {
+		Object[] locks = this.locks;
+		if (locks == null) return copyLinks(node, level, dst);
+		synchronized (locks[node & (LOCK_STRIPES - 1)]) {
+			return copyLinks(node, level, dst);
+		}
+	}
+
+	private int copyLinks(int node, int level, int[] dst) {
+		int[] list = links(node, level);
+		int offset = offset(node, level);
+		int count = list[offset];
+		System.arraycopy(list, offset + 1, dst, 0, count);
+		return count;
+	}
+
+	private Object lock(int node) { return locks[node & (LOCK_STRIPES - 1)]; }
+
+	private int maxLinks(int level) { return level == 0 ? 2 * m : m; }
+
+	private int[] links(int node, int level) { return level == 0 ? links0 : links[node]; }
+
+	private int offset(int node, int level) { return level == 0 ? node * (2 * m + 1) : (level - 1) * (m + 1); }
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) if (channel.read(buffer) < 0) throw new IOException("unexpected end of HNSW index");
+		buffer.flip();
+	}
+
+	/** append values to the buffer, flushing it to channel when full */
+	private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+		for (int i = 0; i < values.length; ) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				write(channel, buffer);
+				buffer.clear();
+			}
+			IntBuffer ints = buffer.asIntBuffer();
+			int n = Math.min(ints.remaining(), values.length - i);
+			ints.put(values, i, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			i += n;
+		}
+	}
+
+	/** @return values, filled from the buffer, refilled from channel when drained */
+	private static int[] readInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+		for (int i = 0; i < values.length; ) {
+			if (buffer.remaining() < Integer.BYTES) {
+				buffer.compact();
+				if (channel.read(buffer) < 0) throw new IOException("unexpected end of HNSW index");
+				buffer.flip();
+				continue;
+			}
+			IntBuffer ints = buffer.asIntBuffer();
+			int n = Math.min(ints.remaining(), values.length - i);
+			ints.get(values, i, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+			i += n;
+		}
+		return values;
+	}
+
+	/** Buffers of the searches of one thread */
+	private class Searcher {
+		final float[] query = new float[dimension()];
+		final int[] neighbours = new int[2 * m];
+		final int[] selected = new int[2 * m];
+		final int[] pruned = new int[2 * m];
+		final TopK found = new TopK(0);
+		/** visit tag of each node, a node is visited by the current search if its tag equals visitTag */
+		final int[] visited = new int[size()];
+		int visitTag;
+		/** max-heap of the candidates to expand, also the scratch of {@link #link} */
+		int[] candidateIds = new int[2 * m + 1];
+		float[] candidateScores = new float[2 * m + 1];
+		int numCandidates;
+
+		void startVisit() {
+			if (++visitTag == 0) {
+				Arrays.fill(visited, 0);
+				visitTag = 1;
+			}
+		}
+
+		/** @return whether node was not visited yet by the current search, marking it */
+		boolean visit(int node) {
+			if (visited[node] == visitTag) return false;
+			visited[node] = visitTag;
+			return true;
+		}
+
+		void clearCandidates() { numCandidates = 0; }
+
+		void push(int id, float score) {
+			if (numCandidates == candidateIds.length) {
+				candidateIds = Arrays.copyOf(candidateIds, 2 * numCandidates);
+				candidateScores = Arrays.copyOf(candidateScores, 2 * numCandidates);
+			}
+			int i = numCandidates++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (candidateScores[parent] >= score) break;
+				candidateIds[i] = candidateIds[parent];
+				candidateScores[i] = candidateScores[parent];
+				i = parent;
+			}
+			candidateIds[i] = id;
+			candidateScores[i] = score;
+		}
+
+		/** @return id of the most similar candidate, removed */
+		int pop() {
+			int top = candidateIds[0];
+			int id = candidateIds[--numCandidates];
+			float score = candidateScores[numCandidates];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numCandidates) break;
+				if (child + 1 < numCandidates && candidateScores[child + 1] > candidateScores[child]) child++;
+				if (candidateScores[child] <= score) break;
+				candidateIds[i] = candidateIds[child];
+				candidateScores[i] = candidateScores[child];
+				i = child;
+			}
+			candidateIds[i] = id;
+			candidateScores[i] = score;
+			return top;
+		}
+	}
+}
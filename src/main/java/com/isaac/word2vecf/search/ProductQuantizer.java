@@ -0,0 +1,248 @@
+package com.isaac.word2vecf.search;
+
+import com.google.common.base.Preconditions;
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import com.isaac.word2vecf.utils.CallableVoid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Product quantizer (Jegou et al.): the dimensions are split into subspaces of equal width, each quantized by k-means
+ * to at most 256 centroids, so a vector is stored as one byte per subspace, e.g. 50 bytes instead of 1200 for 300
+ * floats. A query is compared with a code by asymmetric distance computation: the products of the query with every
+ * centroid are tabulated once, then the score of a code is the sum of one table entry per subspace.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class ProductQuantizer {
+	/** Logger */
+	private static Logger log = LoggerFactory.getLogger(ProductQuantizer.class);
+
+	/** Largest number of centroids per subspace, codes are bytes */
+	public static final int MAX_CENTROIDS = 256;
+	/** Number of vectors encoded by a task */
+	private static final int ENCODE_BATCH = 1 << 14;
+
+	private final int dimension;
+	private final int subspaces;
+	private final int subDimension;
+	private final int centroids;
+	/** centroids of each subspace, subspaces * centroids * subDimension floats */
+	private final float[] codebooks;
+
+	public ProductQuantizer(int dimension, int subspaces, int centroids, float[] codebooks) {
+		Preconditions.checkArgument(subspaces > 0 && dimension % subspaces == 0, String.format("number of subspaces(%d) must divide the dimension(%d)", subspaces, dimension));
+		Preconditions.checkArgument(centroids > 0 && centroids <= MAX_CENTROIDS, String.format("number of centroids must be in [1, %d]", MAX_CENTROIDS));
+		Preconditions.checkArgument(codebooks.length == centroids * dimension, "codebooks must hold centroids * dimension floats");
+		this.dimension = dimension;
+		this.subspaces = subspaces;
+		this.subDimension = dimension / subspaces;
+		this.centroids = centroids;
+		this.codebooks = codebooks;
+	}
+
+	/**
+	 * Train the codebooks by k-means in every subspace
+	 * @param vectors rows to quantize
+	 * @param subspaces number of subspaces, bytes per code, which must divide the number of columns
+	 * @param sampleSize number of rows sampled to train, all of them if fewer
+	 * @param iterations number of k-means iterations
+	 * @param numThreads number of threads, each training a subspace at a time
+	 * @param seed seed of the sample and of the initial centroids
+	 * @return {@link ProductQuantizer}
+	 */
+	public static ProductQuantizer train(FloatMatrix vectors, int subspaces, int sampleSize, int iterations, int numThreads, long seed) {
+		Preconditions.checkArgument(vectors.rows() > 0, "no vectors to quantize");
+		Preconditions.checkArgument(sampleSize > 0 && iterations > 0 && numThreads > 0, "sampleSize, iterations and numThreads must be positive");
+		final int dimension = vectors.columns();
+		Preconditions.checkArgument(subspaces > 0 && dimension % subspaces == 0, String.format("number of subspaces(%d) must divide the dimension(%d)", subspaces, dimension));
+		long start = System.currentTimeMillis();
+		// sample distinct rows by a partial Fisher-Yates shuffle
+		Random random = new Random(seed);
+		int n = Math.min(sampleSize, vectors.rows());
+		Preconditions.checkArgument((long) n * dimension < Integer.MAX_VALUE, "sample too large, decrease sampleSize");
+		int[] rows = new int[vectors.rows()];
+		for (int i = 0; i < rows.length; i++) rows[i] = i;
+		final float[] sample = new float[n * dimension];
+		for (int i = 0; i < n; i++) {
+			int j = i + random.nextInt(rows.length - i);
+			int row = rows[j];
+			rows[j] = rows[i];
+			vectors.getRow(row, sample, i * dimension);
+		}
+		final int centroids = Math.min(MAX_CENTROIDS, n);
+		final int subDimension = dimension / subspaces;
+		final float[] codebooks = new float[centroids * dimension];
+		List<CallableVoid> tasks = new ArrayList<>();
+		for (int s = 0; s < subspaces; s++) {
+			final int subspace = s;
+			final long subspaceSeed = seed + 31L * (s + 1);
+			tasks.add(new CallableVoid() {
+				@Override
+				protected void run() {
+					float[] data = new float[n * subDimension];
+					for (int i = 0; i < n; i++) System.arraycopy(sample, i * dimension + subspace * subDimension, data, i * subDimension, subDimension);
+					float[] means = kmeans(data, n, subDimension, centroids, iterations, new Random(subspaceSeed));
+					System.arraycopy(means, 0, codebooks, subspace * centroids * subDimension, means.length);
+				}
+			});
+		}
+		runAll(tasks, numThreads, "training product quantizer");
+		log.info(String.format("Trained product quantizer of %d subspaces x %d centroids on %d vectors in %.2f s", subspaces, centroids, n,
+				(System.currentTimeMillis() - start) / 1000.0));
+		return new ProductQuantizer(dimension, subspaces, centroids, codebooks);
+	}
+
+	/** @return centroids of the n points of data, k * dim floats, found by Lloyd's iterations from k distinct points */
+	private static float[] kmeans(float[] data, int n, int dim, int k, int iterations, Random random) {
+		float[] means = new float[k * dim];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		for (int c = 0; c < k; c++) {
+			int j = c + random.nextInt(n - c);
+			int point = order[j];
+			order[j] = order[c];
+			System.arraycopy(data, point * dim, means, c * dim, dim);
+		}
+		int[] assignment = new int[n];
+		float[] sums = new float[k * dim];
+		int[] counts = new int[k];
+		for (int iter = 0; iter < iterations; iter++) {
+			boolean changed = iter == 0;
+			for (int i = 0; i < n; i++) {
+				int nearest = nearest(data, i * dim, means, 0, k, dim);
+				if (nearest != assignment[i]) changed = true;
+				assignment[i] = nearest;
+			}
+			if (!changed) break;
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) {
+				int c = assignment[i];
+				counts[c]++;
+				for (int d = 0; d < dim; d++) sums[c * dim + d] += data[i * dim + d];
+			}
+			for (int c = 0; c < k; c++) {
+				// an empty cluster restarts from a random point
+				if (counts[c] == 0) System.arraycopy(data, random.nextInt(n) * dim, means, c * dim, dim);
+				else for (int d = 0; d < dim; d++) means[c * dim + d] = sums[c * dim + d] / counts[c];
+			}
+		}
+		return means;
+	}
+
+	/** @return dimension of the quantized vectors */
+	public int dimension() { return dimension; }
+
+	/** @return number of subspaces, the size of a code in bytes */
+	public int subspaces() { return subspaces; }
+
+	/** @return number of centroids per subspace */
+	public int centroids() { return centroids; }
+
+	/** @return the codebooks, subspaces * centroids * dimension / subspaces floats, not copied */
+	public float[] codebooks() { return codebooks; }
+
+	/** Write the code of vector to codes[offset, offset + subspaces) */
+	public void encode(float[] vector, byte[] codes, int offset) {
+		for (int s = 0; s < subspaces; s++)
+			codes[offset + s] = (byte) nearest(vector, s * subDimension, codebooks, s * centroids * subDimension, centroids, subDimension);
+	}
+
+	/** @return codes of the rows of vectors, subspaces bytes per row, encoded in parallel */
+	public byte[] encode(final FloatMatrix vectors, int numThreads) {
+		Preconditions.checkArgument(vectors.columns() == dimension, String.format("vectors' dimension(%d) must be the quantizer's(%d)", vectors.columns(), dimension));
+		Preconditions.checkArgument((long) vectors.rows() * subspaces < Integer.MAX_VALUE, "too many codes, decrease the number of subspaces");
+		final byte[] codes = new byte[vectors.rows() * subspaces];
+		List<CallableVoid> tasks = new ArrayList<>();
+		for (int start = 0; start < vectors.rows(); start += ENCODE_BATCH) {
+			final int from = start;
+			final int to = Math.min(vectors.rows(), start + ENCODE_BATCH);
+			tasks.add(new CallableVoid() {
+				@Override
+				protected void run() {
+					float[] row = new float[dimension];
+					for (int i = from; i < to; i++) {
+						vectors.getRow(i, row);
+						encode(row, codes, i * subspaces);
+					}
+				}
+			});
+		}
+		runAll(tasks, numThreads, "encoding vectors");
+		return codes;
+	}
+
+	/** Write the vector approximated by codes[offset, offset + subspaces) to vector */
+	public void decode(byte[] codes, int offset, float[] vector) {
+		for (int s = 0; s < subspaces; s++) {
+			int c = codes[offset + s] & 0xFF;
+			System.arraycopy(codebooks, (s * centroids + c) * subDimension, vector, s * subDimension, subDimension);
+		}
+	}
+
+	/** @return table, holding at [s * centroids + c] the product of the query with the centroid c of subspace s */
+	public float[] innerProductTable(float[] query, float[] table) {
+		Preconditions.checkArgument(query.length == dimension, String.format("query's dimension(%d) must be the quantizer's(%d)", query.length, dimension));
+		for (int s = 0, t = 0; s < subspaces; s++) {
+			int q = s * subDimension;
+			for (int c = 0; c < centroids; c++, t++) {
+				int m = t * subDimension;
+				float f = 0;
+				for (int d = 0; d < subDimension; d++) f += query[q + d] * codebooks[m + d];
+				table[t] = f;
+			}
+		}
+		return table;
+	}
+
+	/** @return product of the query of table with the vector approximated by codes[offset, offset + subspaces) */
+	public float score(float[] table, byte[] codes, int offset) {
+		float f = 0;
+		for (int s = 0, t = 0; s < subspaces; s++, t += centroids) f += table[t + (codes[offset + s] & 0xFF)];
+		return f;
+	}
+
+	/** @return index of the centroid nearest to data[offset, offset + dim) in euclidean distance, among the k centroids of means from meansOffset */
+	private static int nearest(float[] data, int offset, float[] means, int meansOffset, int k, int dim) {
+		int best = 0;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int c = 0, m = meansOffset; c < k; c++, m += dim) {
+			float distance = 0;
+			for (int d = 0; d < dim; d++) {
+				float diff = data[offset + d] - means[m + d];
+				distance += diff * diff;
+			}
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private static void runAll(List<CallableVoid> tasks, int numThreads, String what) {
+		final ExecutorService ex = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (Future<Void> future : ex.invokeAll(tasks)) future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error " + what, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while " + what, e);
+		} finally {
+			ex.shutdownNow();
+		}
+	}
+}
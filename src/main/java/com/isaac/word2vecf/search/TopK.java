@@ -0,0 +1,164 @@
+package com.isaac.word2vecf.search;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded selection of the k best scored ids, kept in a min-heap of primitive arrays so that offering a candidate
+ * allocates nothing and costs O(log k) only when it enters the top. Ties are broken by the lowest id, the order of the
+ * stable sort it replaces. Reusable, but not thread-safe: keep one per thread.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public final class TopK {
+	private int k;
+	private int size;
+	private int[] ids;
+	private float[] scores;
+	/** the heap has been sorted into descending order, best first */
+	private boolean sorted;
+
+	public TopK(int k) {
+		reset(k);
+	}
+
+	/** clear the selection, keeping the arrays if they can hold k entries */
+	public TopK reset(int k) {
+		if (k < 0) throw new IllegalArgumentException("k must be non-negative");
+		if (ids == null || ids.length < k) {
+			ids = new int[k];
+			scores = new float[k];
+		}
+		this.k = k;
+		this.size = 0;
+		this.sorted = false;
+		return this;
+	}
+
+	/** @return number of entries kept at most */
+	public int k() { return k; }
+
+	/** @return number of entries kept, min(k, candidates offered) */
+	public int size() { return size; }
+
+	/** @return id of the i-th best entry */
+	public int id(int i) {
+		sort();
+		return ids[i];
+	}
+
+	/** @return score of the i-th best entry */
+	public float score(int i) {
+		sort();
+		return scores[i];
+	}
+
+	/**
+	 * @return lowest score kept while offering once k entries are kept, -infinity before: candidates scored below it
+	 * are rejected, which lets a search prune them
+	 */
+	public float threshold() {
+		if (k == 0) return Float.POSITIVE_INFINITY;
+		return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/** offer a candidate, kept if it is among the k best so far */
+	public void offer(int id, float score) {
+		if (sorted) throw new IllegalStateException("selection already read, reset it first");
+		if (size < k) {
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+		} else if (size > 0 && better(id, score, ids[0], scores[0])) {
+			ids[0] = id;
+			scores[0] = score;
+			siftDown(0);
+		}
+	}
+
+	/** offer the ids [0, scores.length()) of a score vector, e.g. similarities to all the rows of a model */
+	public TopK offerAll(INDArray scores) {
+		for (int i = 0, n = scores.length(); i < n; i++) offer(i, scores.getFloat(i));
+		return this;
+	}
+
+	/** @return ids in descending order of score */
+	public int[] ids() {
+		sort();
+		int[] res = new int[size];
+		System.arraycopy(ids, 0, res, 0, size);
+		return res;
+	}
+
+	/** @return scores in descending order */
+	public float[] scores() {
+		sort();
+		float[] res = new float[size];
+		System.arraycopy(scores, 0, res, 0, size);
+		return res;
+	}
+
+	/** @return labels of the ids in descending order of score */
+	public List<String> labels(List<String> vocab) {
+		sort();
+		List<String> res = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) res.add(vocab.get(ids[i]));
+		return res;
+	}
+
+	/** @return whether (id, score) ranks before (otherId, otherScore) */
+	private static boolean better(int id, float score, int otherId, float otherScore) {
+		int c = Float.compare(score, otherScore);
+		return c > 0 || (c == 0 && id < otherId);
+	}
+
+	/** heap sort the min-heap in place, which leaves the best entry first */
+	private void sort() {
+		if (sorted) return;
+		for (int n = size - 1; n > 0; n--) {
+			swap(0, n);
+			siftDown(0, n);
+		}
+		sorted = true;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!better(ids[parent], scores[parent], ids[i], scores[i])) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		siftDown(i, size);
+	}
+
+	/** restore the heap property below i among the first n entries, the worst entry being at the root */
+	private void siftDown(int i, int n) {
+		while (true) {
+			int worst = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < n && better(ids[worst], scores[worst], ids[left], scores[left])) worst = left;
+			if (right < n && better(ids[worst], scores[worst], ids[right], scores[right])) worst = right;
+			if (worst == i) return;
+			swap(i, worst);
+			i = worst;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
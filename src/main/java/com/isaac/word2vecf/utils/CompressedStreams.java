@@ -0,0 +1,62 @@
+package com.isaac.word2vecf.utils;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.*;
+
+/**
+ * Opens input files for streaming whether they are compressed or not, the compression format (gzip, bzip2, xz,
+ * zstandard, ...) being detected from the signature of the file by commons-compress rather than from its name.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public class CompressedStreams {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** @return stream of the decompressed content of the file, all the concatenated streams are read, e.g. of pigz or pbzip2 */
+	public static InputStream open (String filename) throws IOException {
+		return open(new FileInputStream(filename), filename);
+	}
+
+	/**
+	 * @return stream of the decompressed content of the file opened as in, e.g. to follow the progress through its
+	 * channel, closing it closes in
+	 */
+	public static InputStream open (FileInputStream file, String filename) throws IOException {
+		InputStream in = new BufferedInputStream(file, BUFFER_SIZE);
+		String format = detect(in);
+		if (format == null) return in;
+		try {
+			return new BufferedInputStream(new CompressorStreamFactory(true).createCompressorInputStream(format, in), BUFFER_SIZE);
+		} catch (CompressorException e) {
+			in.close();
+			throw new IOException(String.format("Cannot decompress %s (%s)", filename, format), e);
+		}
+	}
+
+	/** @return reader of the decompressed content of the file in the platform charset, as {@link FileReader} */
+	public static BufferedReader openReader (String filename) throws IOException {
+		return new BufferedReader(new InputStreamReader(open(filename)), 1 << 20);
+	}
+
+	/** @return whether the file is compressed */
+	public static boolean isCompressed (String filename) {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE)) {
+			return detect(in) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** @return compression format of the stream, which must support mark, null if it is not compressed */
+	private static String detect (InputStream in) {
+		try {
+			return CompressorStreamFactory.detect(in);
+		} catch (CompressorException e) {
+			return null;
+		}
+	}
+}
@@ -8,10 +8,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Properties;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by zhanghao on 19/4/17.
@@ -22,44 +28,314 @@ public class ConllFileGenerator {
 
 	private static Logger log = LoggerFactory.getLogger(ConllFileGenerator.class);
 
-	public static void generate (String filename) {
+	/** lines queued per worker, which also bounds the lines parsed ahead of the next line to write */
+	private static final int QUEUE_LINES_PER_THREAD = 16;
+	/** marks the end of the lines for the workers */
+	private static final Line END = new Line(-1, -1, null);
+	/** seconds between two checkpoints of the generation */
+	private static final long CHECKPOINT_INTERVAL = 60;
+
+	public static Statistics generate (String filename) {
+		return generate(filename, 1);
+	}
+
+	/**
+	 * Parse the raw corpus with numThreads workers, each owning its own pipeline: the calling thread reads the lines and
+	 * hands them to the workers through a bounded queue, the parsed lines are written in input order through a reorder
+	 * buffer holding the lines parsed ahead of the next line to write.
+	 * @return counts of the sentences written and dropped
+	 */
+	public static Statistics generate (String filename, int numThreads) {
+		return generate(filename, numThreads, CHECKPOINT_INTERVAL);
+	}
+
+	/**
+	 * Parse the raw corpus with numThreads workers as above, recording every checkpointInterval seconds the input offset
+	 * and output length after the last line written to the sidecar file filename.conll.checkpoint. If a checkpoint is
+	 * left by an interrupted generation, the output is truncated to its length and the input resumed from its offset.
+	 * The checkpoint is deleted once the whole corpus is parsed.
+	 * @return counts of the sentences written and dropped by this run
+	 */
+	public static Statistics generate (String filename, int numThreads, long checkpointInterval) {
 		Preconditions.checkArgument(filename != null && !filename.isEmpty(), "raw corpus file path must be assigned");
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+		Preconditions.checkArgument(checkpointInterval > 0, "checkpoint interval must be positive");
 		System.gc(); // performs garbage collection
+		Statistics statistics = new Statistics();
+		ExecutorService ex = numThreads == 1 ? null : Executors.newFixedThreadPool(numThreads);
+		File outputFile = new File(filename.concat(".conll"));
+		Checkpoint checkpoint = new Checkpoint(new File(filename.concat(".conll.checkpoint")), checkpointInterval * 1000);
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(filename));
-			BufferedWriter writer = new BufferedWriter(new FileWriter(filename.concat(".conll")));
-			/* Set properties */
-			Properties props = new Properties();
-			props.setProperty("annotators", "tokenize, ssplit, pos, lemma, ner, depparse");
-			/* default is universal dependency (english_UD.gz), here we choose stanford dependency (english_SD.gz) */
-			props.setProperty("depparse.model", "edu/stanford/nlp/models/parser/nndep/english_SD.gz");
-			StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
-			Annotation annotation;
-			String line;
-			int index = 0;
-			while ((line = reader.readLine()) != null) {
-				if (line.isEmpty()) continue;
-				annotation = new Annotation(line); // create annotation
-				pipeline.annotate(annotation); // add annotation to pipeline
-				CoNLLUOutputter outputter = new CoNLLUOutputter();
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
-				// performs CoNLLU generator on annotation and output to ByteArrayOutputStream
-				outputter.print(annotation, bos, pipeline);
-				// validate format, drop sentences with error format
-				String result = dropError(new String(bos.toByteArray(), pipeline.getEncoding()));
-				if (result != null && !result.isEmpty()) writer.write(result);
-				writer.flush();
-				index++;
-				if (index % 1000000 == 0) log.info(String.format("%d million lines data have been processed!", index / 1000000));
+			if (checkpoint.restore(outputFile)) {
+				log.info(String.format("Resuming from the checkpoint after %d lines, input offset %d, output length %d",
+						checkpoint.lines, checkpoint.offset, checkpoint.length));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error restoring checkpoint " + checkpoint.file, e);
+		}
+		try (LineReader reader = new LineReader(filename, checkpoint.offset);
+			 FileOutputStream fos = new FileOutputStream(outputFile, checkpoint.lines > 0);
+			 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(checkpoint.attach(fos)), 1 << 20)) {
+			checkpoint.writer = writer;
+			int window = QUEUE_LINES_PER_THREAD * numThreads;
+			ReorderBuffer output = new ReorderBuffer(writer, window, checkpoint);
+			BlockingQueue<Line> queue = new ArrayBlockingQueue<>(window);
+			List<Future<Void>> futures = new ArrayList<>();
+			StanfordCoreNLP pipeline = ex == null ? createPipeline() : null;
+			for (int i = 0; ex != null && i < numThreads; i++) {
+				StanfordCoreNLP workerPipeline = createPipeline();
+				futures.add(ex.submit(() -> consume(workerPipeline, queue, output, statistics)));
+			}
+			String text;
+			long index = checkpoint.lines;
+			while ((text = reader.readLine()) != null) {
+				if (text.isEmpty()) continue;
+				Line line = new Line(index++, reader.offset(), text);
+				if (pipeline != null) {
+					// lines are parsed in order, write the sentences straight to the output
+					parse(pipeline, line.text, writer, statistics);
+					output.write(line, null);
+				} else put(queue, line, futures);
 			}
-			reader.close();
-			writer.close();
+			for (int i = 0; i < futures.size(); i++) put(queue, END, futures);
+			for (Future<Void> future : futures) future.get();
+			writer.flush();
+			Files.deleteIfExists(checkpoint.file.toPath());
+			log.info(statistics.toString());
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error generating CoNLL file", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while generating CoNLL file", e);
+		} finally {
+			if (ex != null) ex.shutdownNow();
+		}
+		return statistics;
+	}
+
+	/** parse the queued lines until the end mark */
+	private static Void consume(StanfordCoreNLP pipeline, BlockingQueue<Line> queue, ReorderBuffer output,
+			Statistics statistics) throws IOException, InterruptedException {
+		StringBuilder sb = new StringBuilder();
+		Line line;
+		while ((line = queue.take()) != END) {
+			sb.setLength(0);
+			parse(pipeline, line.text, sb, statistics);
+			output.write(line, sb.toString());
+		}
+		return null;
+	}
+
+	/** @return dependency parsing pipeline producing the CoNLLU sentences of the raw lines, one per thread */
+	public static StanfordCoreNLP createPipeline () {
+		/* Set properties */
+		Properties props = new Properties();
+		props.setProperty("annotators", "tokenize, ssplit, pos, lemma, ner, depparse");
+		/* default is universal dependency (english_UD.gz), here we choose stanford dependency (english_SD.gz) */
+		props.setProperty("depparse.model", "edu/stanford/nlp/models/parser/nndep/english_SD.gz");
+		return new StanfordCoreNLP(props);
+	}
+
+	/** append the CoNLLU format sentences of the line to out, without the sentences of error format */
+	public static void parse (StanfordCoreNLP pipeline, String line, Appendable out, Statistics statistics) throws IOException {
+		Annotation annotation = new Annotation(line); // create annotation
+		pipeline.annotate(annotation); // add annotation to pipeline
+		CoNLLUOutputter outputter = new CoNLLUOutputter();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		// performs CoNLLU generator on annotation and output to ByteArrayOutputStream
+		outputter.print(annotation, bos, pipeline);
+		// validate format, drop sentences with error format
+		dropError(new String(bos.toByteArray(), pipeline.getEncoding()), out, statistics);
+	}
+
+	/** queue the line, rethrowing the failure of a worker instead of waiting for it forever */
+	private static void put(BlockingQueue<Line> queue, Line line, List<Future<Void>> futures)
+			throws InterruptedException, ExecutionException {
+		while (!queue.offer(line, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<Void> future : futures) if (future.isDone()) future.get();
+		}
+	}
+
+	/** Line of the raw corpus, its index among the non empty lines and the input offset after it */
+	private static class Line {
+		final long index;
+		final long end;
+		final String text;
+
+		Line(long index, long end, String text) {
+			this.index = index;
+			this.end = end;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Reads the lines of a file, compressed or not, in the platform charset, as {@link FileReader}, keeping the offset of
+	 * the next line in the decompressed bytes
+	 */
+	private static class LineReader implements Closeable {
+		private final InputStream in;
+		private byte[] buf = new byte[1 << 10];
+		private long offset;
+
+		LineReader(String filename, long offset) throws IOException {
+			this.in = CompressedStreams.open(filename);
+			// seeks in a plain file, decompresses up to the offset otherwise
+			for (long skipped = 0, n; skipped < offset; skipped += n) {
+				if ((n = in.skip(offset - skipped)) > 0) continue;
+				if (in.read() < 0) throw new EOFException(String.format("%s is shorter than the checkpoint offset %d", filename, offset));
+				n = 1;
+			}
+			this.offset = offset;
+		}
+
+		/** @return next line without its terminator, null at the end of the file */
+		String readLine() throws IOException {
+			int n = 0, b;
+			while ((b = in.read()) != -1) {
+				offset++;
+				if (b == '\n') break;
+				if (n == buf.length) buf = Arrays.copyOf(buf, n << 1);
+				buf[n++] = (byte) b;
+			}
+			if (b == -1 && n == 0) return null;
+			if (n > 0 && buf[n - 1] == '\r') n--;
+			return new String(buf, 0, n, Charset.defaultCharset());
+		}
+
+		/** @return byte offset of the next line */
+		long offset() {
+			return offset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
 		}
 	}
 
-	/** @return cleaned CoNLLU format {@link String} */
+	/**
+	 * Sidecar file of the last consistent point of a generation: the number of lines written, the input offset after the
+	 * last of them and the output length once they are written and synced to disk
+	 */
+	private static class Checkpoint {
+		final File file;
+		private final long intervalMillis;
+		long lines;
+		long offset;
+		long length;
+		Writer writer;
+		private FileOutputStream fos;
+		private CountingOutputStream counter;
+		private long saved = System.currentTimeMillis();
+
+		Checkpoint(File file, long intervalMillis) {
+			this.file = file;
+			this.intervalMillis = intervalMillis;
+		}
+
+		/** read the checkpoint if any and truncate the output to its length, @return whether the checkpoint exists */
+		boolean restore(File output) throws IOException {
+			if (!file.exists()) return false;
+			String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split("\t");
+			lines = Long.parseLong(fields[0]);
+			offset = Long.parseLong(fields[1]);
+			length = Long.parseLong(fields[2]);
+			try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+				if (channel.size() < length) {
+					throw new IOException(String.format("%s is shorter than its checkpoint, %d < %d", output, channel.size(), length));
+				}
+				channel.truncate(length);
+			}
+			return true;
+		}
+
+		/** @return stream counting the output length on top of fos */
+		OutputStream attach(FileOutputStream fos) {
+			this.fos = fos;
+			this.counter = new CountingOutputStream(fos, length);
+			return counter;
+		}
+
+		/** record lines written up to the input offset end if the interval has elapsed since the last checkpoint */
+		void written(long lines, long end) throws IOException {
+			if (System.currentTimeMillis() - saved < intervalMillis) return;
+			writer.flush();
+			fos.getFD().sync();
+			this.lines = lines;
+			this.offset = end;
+			this.length = counter.count;
+			// replace the checkpoint atomically, so that a crash leaves either the previous or the new one
+			File tmp = new File(file.getPath() + ".tmp");
+			Files.write(tmp.toPath(), String.format("%d\t%d\t%d\n", lines, offset, length).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			saved = System.currentTimeMillis();
+		}
+	}
+
+	/** Counts the bytes written to the underlying stream */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out, long count) {
+			super(out);
+			this.count = count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Writes the parsed lines in input order: a line parsed ahead of the next line to write waits in the buffer, and a
+	 * worker blocks while its line is more than window lines ahead, so that the buffer stays bounded
+	 */
+	private static class ReorderBuffer {
+		private final Writer writer;
+		private final long window;
+		private final Checkpoint checkpoint;
+		/** parsed lines waiting for the lines before them, holding their result as text */
+		private final Map<Long, Line> pending = new HashMap<>();
+		/** index of the next line to write */
+		private long next;
+
+		ReorderBuffer(Writer writer, long window, Checkpoint checkpoint) {
+			this.writer = writer;
+			this.window = window;
+			this.checkpoint = checkpoint;
+			this.next = checkpoint.lines;
+		}
+
+		/** write the result of the line once the lines before it are written, null if it was written already */
+		synchronized void write(Line line, String result) throws IOException, InterruptedException {
+			while (line.index - next >= window) wait();
+			pending.put(line.index, new Line(line.index, line.end, result == null ? "" : result));
+			Line ready;
+			while ((ready = pending.remove(next)) != null) {
+				if (!ready.text.isEmpty()) writer.write(ready.text);
+				next++;
+				if (next % 1000000 == 0) log.info(String.format("%d million lines data have been processed!", next / 1000000));
+				checkpoint.written(next, ready.end);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * append the sentences of the CoNLLU output str whose token lines are well formed to out, each followed by a blank
+	 * line, scanning str line by line in place, and count the sentences written and dropped
+	 */
 	/*CoNLLU format sample
 	For a sentence:
 		Kosgi Santosh sent an email to Stanford University. He didn't get a reply.
@@ -82,24 +358,100 @@ public class ConllFileGenerator {
 		6	reply	reply	_	NN	_	4	dobj	_	_
 		7	.	.	_	.	_	4	punct	_	_
 	 */
-	private static String dropError(String str) {
-		if (str == null || str.isEmpty()) return null;
-		String result = "";
-		List<String> list = new ArrayList<>(Arrays.asList(str.split("\n")));
-		List<String> temp = new ArrayList<>();
-		boolean flag = true;
-		for (String line : list) {
-			temp.add(line);
-			if (line.isEmpty()) {
-				if (flag) for (String s : temp) result = result.concat(s).concat("\n");
-				temp.clear();
-				flag = true;
-			} else {
-				String[] tokens = line.split("\t");
-				if (tokens.length != 10 || !Common.isNumeric(tokens[0]) || !Common.isNumeric(tokens[6])) flag = false;
+	private static void dropError(String str, Appendable out, Statistics statistics) throws IOException {
+		if (str == null || str.isEmpty()) return;
+		int sentence = 0; // start of the current sentence
+		DropReason reason = null; // first error of the current sentence
+		for (int from = 0, to; from < str.length(); from = to + 1) {
+			to = str.indexOf('\n', from);
+			if (to < 0) to = str.length();
+			if (to == from) { // a blank line ends the sentence
+				if (to > sentence) endSentence(str, sentence, to + 1, reason, out, statistics);
+				sentence = to + 1;
+				reason = null;
+			} else if (reason == null) reason = validate(str, from, to);
+		}
+		if (sentence < str.length()) {
+			endSentence(str, sentence, str.length(), reason, out, statistics);
+			if (reason == null) out.append(str.charAt(str.length() - 1) == '\n' ? "\n" : "\n\n");
+		}
+	}
+
+	/** write the sentence in [from, to) of str to out if it is valid, count it as written or dropped */
+	private static void endSentence(String str, int from, int to, DropReason reason, Appendable out, Statistics statistics)
+			throws IOException {
+		if (reason == null) {
+			out.append(str, from, to);
+			statistics.sentences.incrementAndGet();
+		} else statistics.dropped.incrementAndGet(reason.ordinal());
+	}
+
+	/** @return reason to drop the token line in [from, to) of str, null if it is valid */
+	private static DropReason validate(String str, int from, int to) {
+		int fields = 1, indexEnd = -1, headStart = -1, headEnd = -1;
+		for (int i = from; i < to; i++) {
+			if (str.charAt(i) != '\t') continue;
+			if (fields == 1) indexEnd = i;
+			else if (fields == 6) headStart = i + 1;
+			else if (fields == 7) headEnd = i;
+			fields++;
+		}
+		if (fields != 10) return DropReason.FIELD_COUNT;
+		if (!isNumeric(str, from, indexEnd)) return DropReason.TOKEN_INDEX;
+		if (!isNumeric(str, headStart, headEnd)) return DropReason.HEAD_INDEX;
+		return null;
+	}
+
+	/** @return whether [from, to) of str is a non empty run of ASCII digits, as {@link Common#isNumeric(String)} */
+	private static boolean isNumeric(String str, int from, int to) {
+		if (from >= to) return false;
+		for (int i = from; i < to; i++) if (str.charAt(i) < '0' || str.charAt(i) > '9') return false;
+		return true;
+	}
+
+	/** Reasons to drop a sentence of the CoNLLU output */
+	public enum DropReason {
+		/** a token line has not the 10 CoNLLU fields */
+		FIELD_COUNT,
+		/** the index of a token is not a number, e.g. a multiword token range */
+		TOKEN_INDEX,
+		/** the head of a token is not a number */
+		HEAD_INDEX
+	}
+
+	/** Counts of the sentences written and dropped by {@link #generate(String, int)}, updated as the lines are parsed */
+	public static class Statistics {
+		private final AtomicLong sentences = new AtomicLong();
+		private final AtomicLongArray dropped = new AtomicLongArray(DropReason.values().length);
+
+		/** @return number of sentences written */
+		public long sentences() {
+			return sentences.get();
+		}
+
+		/** @return number of sentences dropped */
+		public long dropped() {
+			long sum = 0;
+			for (int i = 0; i < dropped.length(); i++) sum += dropped.get(i);
+			return sum;
+		}
+
+		/** @return number of sentences dropped for the reason */
+		public long dropped(DropReason reason) {
+			return dropped.get(reason.ordinal());
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(String.format("%d sentences written, %d dropped", sentences(), dropped()));
+			String separator = " (";
+			for (DropReason reason : DropReason.values()) {
+				if (dropped(reason) == 0) continue;
+				sb.append(separator).append(reason).append(": ").append(dropped(reason));
+				separator = ", ";
 			}
+			if (dropped() > 0) sb.append(")");
+			return sb.toString();
 		}
-		if (flag && !temp.isEmpty()) for (String s : temp) result = result.concat(s).concat("\n");
-		return result;
 	}
 }
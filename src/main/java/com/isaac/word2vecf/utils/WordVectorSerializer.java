@@ -3,8 +3,11 @@ package com.isaac.word2vecf.utils;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Bytes;
+import com.isaac.word2vecf.QuantizedWord2Vec;
 import com.isaac.word2vecf.Word2Vec;
 import com.isaac.word2vecf.Word2Vecf;
+import com.isaac.word2vecf.matrix.FloatMatrix;
+import com.isaac.word2vecf.search.ProductQuantizer;
 import javafx.util.Pair;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
@@ -14,9 +17,12 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +38,16 @@ public class WordVectorSerializer {
 	private final static byte LINE_SEPARATOR = 10;
 	private final static byte COLUMN_SEPARATOR = 32;
 	private final static ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+	/** Quantized model file, layout (little endian):
+	 *   header: magic, version, vocab size, dimension, subspaces, centroids (ints), offset of the full precision vectors,
+	 *           0 if not saved (long)
+	 *   body:   codebooks (floats), codes (bytes), vocabulary (UTF-8 words ending with a line separator), full precision
+	 *           vectors (floats, row-major) */
+	private final static int QUANTIZED_MAGIC = 0x57325651; // "W2VQ"
+	private final static int QUANTIZED_VERSION = 1;
+	private final static int QUANTIZED_HEADER_SIZE = 32;
+	/** Number of bytes written at once */
+	private final static int BUFFER_SIZE = 1 << 20;
 
 	/** @return {@link Word2Vec} */
 	public static Word2Vec loadWord2VecModel (String wordFilePath, boolean binary) {
@@ -201,4 +217,128 @@ public class WordVectorSerializer {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Save the rows of the vectors with their labels as binary file, in the format of
+	 * {@link #saveWord2VecToBinary(String, Word2Vec)}, a row at a time, so vectors beyond the size of an ND4J array
+	 * are saved too
+	 * @param normalize whether to divide each row by its norm, as a model built with normalize does
+	 */
+	public static void saveToBinary (String toPath, List<String> vocab, FloatMatrix vectors, boolean normalize) throws IOException {
+		Preconditions.checkArgument(vocab.size() == vectors.rows(), "one label is required per row");
+		final Charset cs = StandardCharsets.UTF_8;
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(toPath)), BUFFER_SIZE)) {
+			os.write(String.format("%d %d\n", vectors.rows(), vectors.columns()).getBytes(cs));
+			final ByteBuffer buffer = ByteBuffer.allocate(4 * vectors.columns()).order(byteOrder);
+			final float[] row = new float[vectors.columns()];
+			for (int i = 0; i < vectors.rows(); i++) {
+				vectors.getRow(i, row);
+				float norm = normalize ? (float) Math.sqrt(vectors.dot(i, row)) : 0;
+				if (norm == 0) norm = 1;
+				buffer.clear();
+				for (float f : row) buffer.putFloat(f / norm);
+				os.write(String.format("%s ", vocab.get(i)).getBytes(cs));
+				os.write(buffer.array());
+				os.write(LINE_SEPARATOR);
+			}
+		}
+	}
+
+	/**
+	 * Save the quantized model as binary file
+	 * @param exactVectors whether to save the full precision vectors too, to re-rank with them once loaded
+	 */
+	public static void saveQuantizedModel (String toPath, QuantizedWord2Vec model, boolean exactVectors) {
+		Preconditions.checkArgument(!exactVectors || model.getExactVectors() != null, "the model has no full precision vectors to save");
+		ProductQuantizer quantizer = model.getQuantizer();
+		try (FileChannel channel = FileChannel.open(Paths.get(toPath), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(byteOrder);
+			channel.position(QUANTIZED_HEADER_SIZE);
+			for (float f : quantizer.codebooks()) {
+				if (!buffer.hasRemaining()) flush(channel, buffer);
+				buffer.putFloat(f);
+			}
+			flush(channel, buffer);
+			write(channel, ByteBuffer.wrap(model.getCodes()));
+			for (String word : model.getVocab()) {
+				byte[] bytes = (word + "\n").getBytes(StandardCharsets.UTF_8);
+				if (buffer.remaining() < bytes.length) flush(channel, buffer);
+				if (bytes.length > buffer.capacity()) write(channel, ByteBuffer.wrap(bytes));
+				else buffer.put(bytes);
+			}
+			flush(channel, buffer);
+			long exactOffset = 0;
+			if (exactVectors) {
+				exactOffset = channel.position();
+				FloatMatrix vectors = model.getExactVectors();
+				float[] row = new float[vectors.columns()];
+				for (int i = 0; i < vectors.rows(); i++) {
+					vectors.getRow(i, row);
+					if (buffer.remaining() < row.length * Float.BYTES) flush(channel, buffer);
+					for (float f : row) buffer.putFloat(f);
+				}
+				flush(channel, buffer);
+			}
+			ByteBuffer header = ByteBuffer.allocate(QUANTIZED_HEADER_SIZE).order(byteOrder);
+			header.putInt(QUANTIZED_MAGIC).putInt(QUANTIZED_VERSION).putInt(model.vocabSize()).putInt(quantizer.dimension())
+					.putInt(quantizer.subspaces()).putInt(quantizer.centroids()).putLong(exactOffset);
+			header.flip();
+			channel.position(0);
+			write(channel, header);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** @return {@link QuantizedWord2Vec}, whose full precision vectors if saved are mapped from the file rather than loaded */
+	public static QuantizedWord2Vec loadQuantizedModel (String filePath) {
+		QuantizedWord2Vec model = null;
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			ByteBuffer header = read(channel, QUANTIZED_HEADER_SIZE);
+			Preconditions.checkState(header.getInt() == QUANTIZED_MAGIC && header.getInt() == QUANTIZED_VERSION,
+					"File '%s' is not a quantized model of version %s", filePath, QUANTIZED_VERSION);
+			int vocabSize = header.getInt();
+			int dimension = header.getInt();
+			int subspaces = header.getInt();
+			int centroids = header.getInt();
+			long exactOffset = header.getLong();
+			float[] codebooks = new float[centroids * dimension];
+			read(channel, codebooks.length * Float.BYTES).asFloatBuffer().get(codebooks);
+			byte[] codes = new byte[vocabSize * subspaces];
+			ByteBuffer wrapped = ByteBuffer.wrap(codes);
+			while (wrapped.hasRemaining()) if (channel.read(wrapped) < 0) throw new EOFException("Unexpected end of file " + filePath);
+			// the reader buffers past the vocabulary, the vectors are mapped at their offset regardless
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			List<String> vocab = new ArrayList<>(vocabSize);
+			for (int i = 0; i < vocabSize; i++) {
+				String word = reader.readLine();
+				if (word == null) throw new EOFException("Unexpected end of file " + filePath);
+				vocab.add(word);
+			}
+			FloatMatrix exactVectors = exactOffset == 0 ? null : FloatMatrix.map(channel, exactOffset, vocabSize, dimension, byteOrder);
+			model = new QuantizedWord2Vec(vocab, new ProductQuantizer(dimension, subspaces, centroids, codebooks), codes, exactVectors);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return model;
+	}
+
+	/** write the buffer to channel and clear it */
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		write(channel, buffer);
+		buffer.clear();
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) channel.write(buffer);
+	}
+
+	/** @return buffer of the next size bytes of channel */
+	private static ByteBuffer read(FileChannel channel, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(byteOrder);
+		while (buffer.hasRemaining()) if (channel.read(buffer) < 0) throw new EOFException("Unexpected end of file");
+		buffer.flip();
+		return buffer;
+	}
 }
@@ -0,0 +1,271 @@
+package com.isaac.word2vecf.vocabulary;
+
+import java.util.Arrays;
+
+/**
+ * Bounded memory counter of a stream of words: a SpaceSaving list monitors the k most frequent words, backed by a
+ * count-min sketch (conservative update) which bounds the count of a word entering the list more tightly than the
+ * counts it may have had when evicted. All counts are upper bounds of the true counts, and with N the number of
+ * words counted:
+ *   - every word whose true count exceeds {@link #listErrorBound()} (the largest count a word was evicted with, about
+ *     N / k) is monitored, and a monitored count is at most its recorded error above the true count,
+ *   - the sketch estimate of any word is at most e / width * N above its true count with probability 1 - e^-depth.
+ * Counters are mergeable, the bounds of the merged counter hold for the merged stream. Not thread safe.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class ApproximateCounter {
+	/** approximate heap cost of a monitored word: its arrays entries and a short String */
+	static final int ENTRY_BYTES = 128;
+	private static final int DEPTH = 5;
+
+	/* -----count-min sketch----- */
+	private final int width;
+	private final long[] sketch;
+
+	/* -----SpaceSaving list, with a min-heap on the counts and an open addressing index on the words----- */
+	private final int capacity;
+	private final String[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	/** word attached to each monitored word, e.g. the word a context was built from, null if none */
+	private final String[] others;
+	private int size;
+	/** entries ordered as a min-heap of their counts, and the heap position of each entry */
+	private final int[] heap;
+	private final int[] position;
+	/** entry + 1 of each slot, 0 if empty */
+	private final int[] table;
+	private final int mask;
+	/** number of words counted */
+	private long total;
+	/** upper bound of the true count of any word not monitored */
+	private long floor;
+
+	ApproximateCounter(int capacity, int width) {
+		this.capacity = capacity;
+		this.width = width;
+		this.sketch = new long[DEPTH * width];
+		this.keys = new String[capacity];
+		this.counts = new long[capacity];
+		this.errors = new long[capacity];
+		this.others = new String[capacity];
+		this.heap = new int[capacity];
+		this.position = new int[capacity];
+		int slots = Integer.highestOneBit(Math.max(capacity, 1)) << 2;
+		this.table = new int[slots];
+		this.mask = slots - 1;
+	}
+
+	/** @return counter using about memoryBytes of heap, half for the list and half for the sketch */
+	static ApproximateCounter withBudget(long memoryBytes) {
+		long half = Math.max(memoryBytes / 2, 1 << 12);
+		int capacity = (int) Math.min(half / ENTRY_BYTES, Integer.MAX_VALUE >> 3);
+		int width = (int) Math.min(half / (DEPTH * Long.BYTES), Integer.MAX_VALUE / DEPTH);
+		return new ApproximateCounter(capacity, width);
+	}
+
+	/** add n to the count of the word, other is kept along with the word if it is monitored */
+	void add(String word, long n, String other) {
+		total += n;
+		long hash = hash64(word);
+		// conservative update: only raise the cells below the new lower bound of the word
+		long estimate = estimate(hash) + n;
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		for (int d = 0; d < DEPTH; d++) {
+			int cell = d * width + Math.floorMod(h1 + d * h2, width);
+			if (sketch[cell] < estimate) sketch[cell] = estimate;
+		}
+		int entry = indexOf(word);
+		if (entry >= 0) {
+			counts[entry] += n;
+			siftDown(position[entry]);
+			return;
+		}
+		if (size < capacity) {
+			entry = size++;
+			heap[entry] = entry;
+			position[entry] = entry;
+			set(entry, word, n, 0, other);
+			siftUp(entry);
+			return;
+		}
+		// replace the least counted word, the new word was counted at most min(floor, its sketch estimate) times so far
+		entry = heap[0];
+		floor = Math.max(floor, counts[entry]);
+		long base = Math.min(floor, estimate - n);
+		remove(keys[entry]);
+		set(entry, word, base + n, base, other);
+		siftDown(0);
+	}
+
+	private void set(int entry, String word, long count, long error, String other) {
+		keys[entry] = word;
+		counts[entry] = count;
+		errors[entry] = error;
+		others[entry] = other;
+		int slot = (int) hash64(word) & mask;
+		while (table[slot] != 0) slot = (slot + 1) & mask;
+		table[slot] = entry + 1;
+	}
+
+	/** @return entry of the word, -1 if it is not monitored */
+	private int indexOf(String word) {
+		for (int slot = (int) hash64(word) & mask, e; (e = table[slot]) != 0; slot = (slot + 1) & mask) {
+			if (keys[e - 1].equals(word)) return e - 1;
+		}
+		return -1;
+	}
+
+	/** remove the word from the index, shifting back the following slots of its probe sequence */
+	private void remove(String word) {
+		int slot = (int) hash64(word) & mask;
+		while (!keys[table[slot] - 1].equals(word)) slot = (slot + 1) & mask;
+		for (int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int home = (int) hash64(keys[table[next] - 1]) & mask;
+			// move the entry back if its home is not in (slot, next]
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				table[slot] = table[next];
+				slot = next;
+			}
+		}
+		table[slot] = 0;
+	}
+
+	private void siftUp(int i) {
+		int entry = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (counts[heap[parent]] <= counts[entry]) break;
+			heap[i] = heap[parent];
+			position[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = entry;
+		position[entry] = i;
+	}
+
+	private void siftDown(int i) {
+		int entry = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) child++;
+			if (counts[heap[child]] >= counts[entry]) break;
+			heap[i] = heap[child];
+			position[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = entry;
+		position[entry] = i;
+	}
+
+	/** @return upper bound of the count of the word */
+	long estimate(String word) {
+		int entry = indexOf(word);
+		long sketched = estimate(hash64(word));
+		return Math.min(entry >= 0 ? counts[entry] : floor, sketched);
+	}
+
+	private long estimate(long hash) {
+		int h1 = (int) hash, h2 = (int) (hash >>> 32);
+		long min = Long.MAX_VALUE;
+		for (int d = 0; d < DEPTH; d++) min = Math.min(min, sketch[d * width + Math.floorMod(h1 + d * h2, width)]);
+		return min;
+	}
+
+	/** @return lower bound of the count of the word */
+	private long lowerBound(String word) {
+		int entry = indexOf(word);
+		return entry >= 0 ? counts[entry] - errors[entry] : 0;
+	}
+
+	/** add the counts of the other counter, which must have the same width */
+	void merge(ApproximateCounter o) {
+		if (o.width != width) throw new IllegalArgumentException("sketches of different widths");
+		// bounds of the candidates of both lists over both streams, computed before the sketches are merged
+		String[] candidates = new String[size + o.size];
+		String[] attached = new String[candidates.length];
+		long[] upper = new long[candidates.length];
+		long[] lower = new long[candidates.length];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			candidates[n] = keys[i];
+			attached[n] = others[i];
+			upper[n] = estimate(keys[i]) + o.estimate(keys[i]);
+			lower[n++] = lowerBound(keys[i]) + o.lowerBound(keys[i]);
+		}
+		for (int i = 0; i < o.size; i++) {
+			if (indexOf(o.keys[i]) >= 0) continue;
+			candidates[n] = o.keys[i];
+			attached[n] = o.others[i];
+			upper[n] = estimate(o.keys[i]) + o.estimate(o.keys[i]);
+			lower[n++] = o.lowerBound(o.keys[i]);
+		}
+		for (int i = 0; i < sketch.length; i++) sketch[i] += o.sketch[i];
+		total += o.total;
+		// words monitored by neither counter were counted at most floor + o.floor times
+		// keep the largest upper bounds
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(upper[b], upper[a]));
+		Arrays.fill(table, 0);
+		Arrays.fill(keys, null);
+		Arrays.fill(others, null);
+		size = Math.min(n, capacity);
+		floor += o.floor;
+		for (int i = size; i < n; i++) floor = Math.max(floor, upper[order[i]]);
+		for (int i = 0; i < size; i++) {
+			int c = order[i];
+			heap[i] = i;
+			position[i] = i;
+			set(i, candidates[c], upper[c], upper[c] - lower[c], attached[c]);
+		}
+		for (int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+	}
+
+	/** Visitor of the monitored words */
+	interface Visitor {
+		void visit(String word, long count, long error, String other);
+	}
+
+	/** visit the monitored words with the upper bounds of their counts and the errors of these bounds */
+	void forEach(Visitor visitor) {
+		for (int i = 0; i < size; i++) {
+			long count = Math.min(counts[i], estimate(hash64(keys[i])));
+			visitor.visit(keys[i], count, Math.max(count - (counts[i] - errors[i]), 0), others[i]);
+		}
+	}
+
+	/** @return number of words counted */
+	long total() {
+		return total;
+	}
+
+	/** @return bound of the overestimation of the monitored counts, and of the true count of the words not monitored */
+	long listErrorBound() {
+		return floor;
+	}
+
+	/** @return bound of the overestimation of {@link #estimate(String)}, e / width * N, with probability {@link #confidence()} */
+	long sketchErrorBound() {
+		return (long) Math.ceil(Math.E / width * total);
+	}
+
+	/** @return probability of {@link #sketchErrorBound()} to hold for a given word */
+	double confidence() {
+		return 1 - Math.exp(-DEPTH);
+	}
+
+	/** @return 64 bits FNV-1a hash of the chars of the word, independent of String.hashCode collisions */
+	private static long hash64(String word) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < word.length(); i++) {
+			h ^= word.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h ^ (h >>> 29);
+	}
+}
@@ -0,0 +1,166 @@
+package com.isaac.word2vecf.vocabulary;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Exact counter of more distinct keys than fit in memory: keys are counted in memory up to maxEntries distinct keys,
+ * then spilled to a run file sorted by key, and the runs of any number of counters are merged k-way, equal keys
+ * being summed, into a stream of keys in sorted order. Not thread safe, each worker owns its own counters.
+ *
+ * Run layout: (key (modified UTF-8), count (long)) records sorted by key
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class ExternalCounter {
+	/** approximate heap cost of a distinct key of a few dozen chars in the in-memory counter */
+	static final int ENTRY_BYTES = 160;
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** most runs merged at once, more runs are first merged into intermediate runs to bound the open files */
+	private static final int MAX_FAN_IN = 128;
+
+	private final File directory;
+	private final String name;
+	private final int maxEntries;
+	private WordCounter counter = new WordCounter(false);
+	private final List<File> runs = new ArrayList<>();
+	private int sequence;
+
+	ExternalCounter(File directory, String name, int maxEntries) {
+		this.directory = directory;
+		this.name = name;
+		this.maxEntries = Math.max(maxEntries, 1);
+	}
+
+	/** add n to the count of the key */
+	void add(String key, long n) throws IOException {
+		counter.add(key, n);
+		if (counter.size() >= maxEntries) spill();
+	}
+
+	/** write the keys counted in memory to a new run */
+	private void spill() throws IOException {
+		if (counter.size() == 0) return;
+		final WordCounter c = counter;
+		Integer[] order = new Integer[c.size()];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> c.word(a).compareTo(c.word(b)));
+		File run = newRun();
+		try (DataOutputStream out = openRun(run)) {
+			for (int id : order) {
+				out.writeUTF(c.word(id));
+				out.writeLong(c.count(id));
+			}
+		}
+		runs.add(run);
+		counter = new WordCounter(false);
+	}
+
+	private File newRun() {
+		return new File(directory, String.format("%s-%d.run", name, sequence++));
+	}
+
+	private static DataOutputStream openRun(File run) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+	}
+
+	/** @return number of runs spilled so far */
+	int runs() {
+		return runs.size();
+	}
+
+	/** Visitor of the merged keys */
+	interface Visitor {
+		void visit(String key, long count) throws IOException;
+	}
+
+	/** merge the counts of all counters, visiting each key once, in sorted order, then delete the runs */
+	static void merge(List<ExternalCounter> counters, Visitor visitor) throws IOException {
+		List<File> files = new ArrayList<>();
+		try {
+			for (ExternalCounter counter : counters) {
+				counter.spill();
+				files.addAll(counter.runs);
+				counter.runs.clear();
+			}
+			// merge passes over the oldest runs until a single pass can merge the rest
+			ExternalCounter first = counters.get(0);
+			while (files.size() > MAX_FAN_IN) {
+				List<File> batch = new ArrayList<>(files.subList(0, MAX_FAN_IN));
+				File merged = first.newRun();
+				files.add(merged);
+				try (DataOutputStream out = openRun(merged)) {
+					mergeRuns(batch, (key, count) -> {
+						out.writeUTF(key);
+						out.writeLong(count);
+					});
+				}
+				for (File file : batch) Files.delete(file.toPath());
+				files.subList(0, MAX_FAN_IN).clear();
+			}
+			mergeRuns(files, visitor);
+		} finally {
+			for (File file : files) Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/** merge the runs k-way, summing the counts of equal keys */
+	private static void mergeRuns(List<File> files, Visitor visitor) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> a.key.compareTo(b.key));
+		List<Run> open = new ArrayList<>();
+		try {
+			for (File file : files) {
+				Run run = new Run(file);
+				open.add(run);
+				if (run.next()) queue.add(run);
+			}
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				String key = run.key;
+				long count = run.count;
+				if (run.next()) queue.add(run);
+				while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+					Run same = queue.poll();
+					count += same.count;
+					if (same.next()) queue.add(same);
+				}
+				visitor.visit(key, count);
+			}
+		} finally {
+			for (Run run : open) run.close();
+		}
+	}
+
+	/** Cursor over the records of a run */
+	private static class Run implements Closeable {
+		private final DataInputStream in;
+		String key;
+		long count;
+
+		Run(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		/** @return true if a record was read, false at the end of the run */
+		boolean next() throws IOException {
+			try {
+				key = in.readUTF();
+			} catch (EOFException e) {
+				return false;
+			}
+			count = in.readLong();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
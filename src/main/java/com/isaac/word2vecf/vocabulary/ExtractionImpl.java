@@ -2,14 +2,17 @@ package com.isaac.word2vecf.vocabulary;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableSet;
+import com.isaac.word2vecf.utils.CompressedStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
 
 /**
  * Pre-process, create input data, which is in the form of (word context) pairs, as well as word and context vocabularies
@@ -31,22 +34,48 @@ public class ExtractionImpl {
 	/** count whole train words */
 	private static long trainedWordsCount = 0;
 
-	/** the set of words which appearance frequency larger than MIN_FREQUENCY */
-	private final ImmutableSet<String> wordSet;
-
 	/** train file */
 	private final String trainFile;
 	/** train file directory */
 	private final String directory;
+	/** heap bytes for the approximate or spilling counters, 0 to count exactly in memory */
+	private final long memoryBudget;
+	/** whether the counters spill to temp files beyond memoryBudget instead of counting approximately */
+	private final boolean spill;
 
 	/** functions to deal with word and context vocabularies */
 	private static final VocabFunctions V = new VocabFunctions();
-	/** create word and context vocabularies */
-	private final Vocabulary wv = V.createVocabulary();
-	private final Vocabulary cv = V.createVocabulary();
+	/** lines of the CoNLL file handed to a worker at once, and blocks queued per worker */
+	private static final int BLOCK_LINES = 10000;
+	private static final int QUEUE_BLOCKS_PER_THREAD = 4;
+	/** marks the end of the blocks for the workers */
+	private static final List<String> END = new ArrayList<>();
 
 	/** constructor */
 	public ExtractionImpl(String trainFile, Integer minFrequency, Integer minCount) {
+		this(trainFile, minFrequency, minCount, null);
+	}
+
+	/**
+	 * constructor, counting the words and contexts approximately within memoryBudget bytes if it is assigned: the
+	 * counts written to wv and cv are upper bounds, and every word and context whose count exceeds the error bound
+	 * logged at the end is kept. Without memoryBudget every distinct word, context and pair is counted exactly.
+	 */
+	public ExtractionImpl(String trainFile, Integer minFrequency, Integer minCount, Long memoryBudget) {
+		this(trainFile, minFrequency, minCount, memoryBudget, false);
+	}
+
+	/**
+	 * constructor, counting the words and contexts exactly within about memoryBudget bytes if spill is set: the pair
+	 * counts beyond it are spilled as sorted runs to temp files next to the train file, then merged k-way into wv and
+	 * cv, which need not fit in memory either. Only the raw word frequencies are kept in memory. Without spill, the
+	 * counts are approximate as above.
+	 */
+	public ExtractionImpl(String trainFile, Integer minFrequency, Integer minCount, Long memoryBudget, boolean spill) {
+		Preconditions.checkArgument(memoryBudget == null || memoryBudget > 0, "memory budget must be positive");
+		Preconditions.checkArgument(!spill || memoryBudget != null, "memory budget must be assigned to spill");
+		this.memoryBudget = MoreObjects.firstNonNull(memoryBudget, 0L);
+		this.spill = spill;
 		Preconditions.checkArgument(trainFile != null && !trainFile.isEmpty(), "train file path must be assigned");
 		this.trainFile = trainFile;
 		this.directory = trainFile.substring(0, trainFile.lastIndexOf("/"));
@@ -54,36 +83,66 @@ public class ExtractionImpl {
 		this.MIN_FREQUENCY = minFrequency < 0 ? 5 : minFrequency;
 		minCount = MoreObjects.firstNonNull(minCount, minFrequency);
 		this.MIN_COUNT = minCount < 0 ? this.MIN_FREQUENCY : minCount;
-		this.wordSet = buildWordVocab(trainFile);
 	}
 
 	public void run() {
+		run(1);
+	}
+
+	/**
+	 * Extract the dependency contexts with numThreads workers: the calling thread reads blocks of whole sentences and
+	 * hands them to the workers, each worker writes its pairs to its own dep.context shard and counts them into its own
+	 * counters, the shards are then concatenated into dep.context and the counters merged into the vocabularies.
+	 *
+	 * The corpus is read once: the workers count the raw word frequencies along with the pairs, so pairs are written
+	 * before their words are known to be frequent. A pair whose two words a worker has already counted more than
+	 * MIN_FREQUENCY times is kept for sure and only adds to its word and context counts; the other pairs, made of rare
+	 * words or of the first occurrences of frequent ones, are counted per pair until the MIN_FREQUENCY filter is applied
+	 * to them at the end, which bounds the pair counts by the vocabulary size rather than the number of distinct pairs.
+	 * The pairs of infrequent words left in dep.context are out of the vocabularies, hence skipped by the trainer.
+	 */
+	public void run(int numThreads) {
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+		String output = directory.concat("/dep.context");
+		List<File> shards = new ArrayList<>();
+		if (numThreads == 1) shards.add(new File(output));
+		else for (int i = 0; i < numThreads; i++) shards.add(new File(output + "." + i));
+		List<Worker> workers = new ArrayList<>();
+		ExecutorService ex = numThreads == 1 ? null : Executors.newFixedThreadPool(numThreads);
+		File spillDirectory = null;
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(trainFile));
-			BufferedWriter writer = new BufferedWriter(new FileWriter(directory.concat("/dep.context")));
-			// initiate the list to store tokens of a sentence
-			List<Token> sent = new ArrayList<>();
-			Token root = new Token(0, "*root*", -1, "rroot");
-			sent.add(root);
-			String line;
-			while ((line = reader.readLine()) != null) {
-				if (line.equals("")) {
-					if (sent.size() > 1) {
-						String depContexts = this.extractDependency(sent);
-						writer.write(depContexts);
-						writer.flush();
-						this.countFilter(new ArrayList<>(Arrays.asList(depContexts.split("\n"))));
+			// raw (unless spilling), word and context counters of every worker share the memory budget
+			long counterBudget = memoryBudget / ((spill ? 2L : 3L) * numThreads);
+			if (spill) spillDirectory = Files.createTempDirectory(Paths.get(directory), "spill").toFile();
+			for (File shard : shards) workers.add(new Worker(shard, counterBudget, spillDirectory, workers.size()));
+			BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS_PER_THREAD * numThreads);
+			List<Future<Void>> futures = new ArrayList<>();
+			if (ex != null) for (Worker worker : workers) futures.add(ex.submit(() -> worker.consume(queue)));
+			try (BufferedReader reader = CompressedStreams.openReader(trainFile)) {
+				List<String> block = new ArrayList<>(BLOCK_LINES);
+				String line;
+				while ((line = reader.readLine()) != null) {
+					block.add(line);
+					// cut blocks at sentence boundaries only
+					if (line.isEmpty() && block.size() >= BLOCK_LINES) {
+						dispatch(block, workers, queue, futures);
+						block = new ArrayList<>(BLOCK_LINES);
 					}
-					sent = new ArrayList<>();
-					sent.add(root);
-				} else {
-					String[] str = line.toLowerCase().split("\t");
-					sent.add(new Token(Integer.parseInt(str[0]), str[1], Integer.parseInt(str[6]), str[7]));
 				}
+				if (!block.isEmpty()) dispatch(block, workers, queue, futures);
 			}
-			log.info("Dependency Contexts have extracted, file path: " + directory.concat("/dep.context"));
-			reader.close();
-			writer.close();
+			for (int i = 0; i < futures.size(); i++) put(queue, END, futures);
+			for (Future<Void> future : futures) future.get();
+			for (Worker worker : workers) worker.close();
+			if (numThreads > 1) concatenate(shards, new File(output));
+			log.info("Dependency Contexts have extracted, file path: " + output);
+			if (spill) {
+				mergeSpilledVocabularies(workers, spillDirectory);
+				return;
+			}
+			Vocabulary[] vocabularies = memoryBudget > 0 ? approximateVocabularies(workers) : exactVocabularies(workers);
+			Vocabulary wv = vocabularies[0];
+			Vocabulary cv = vocabularies[1];
 			V.sortAndReduceVocab(wv, MIN_COUNT);
 			V.sortAndReduceVocab(cv, MIN_COUNT);
 			log.info(String.format("Count and filter process finished. Minimum count: %s", MIN_COUNT));
@@ -93,50 +152,376 @@ public class ExtractionImpl {
 			V.saveVocab(cv, directory.concat("/cv"));
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error extracting dependency contexts", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while extracting dependency contexts", e);
+		} finally {
+			if (ex != null) ex.shutdownNow();
+			if (spillDirectory != null) deleteDirectory(spillDirectory);
 		}
 	}
 
-	private void countFilter(List<String> sentences) {
-		int a, i;
-		for (String line : sentences) {
-			if (line.isEmpty())
-				continue;
-			String word = line.split(" ")[0];
-			String context = line.split(" ")[1];
-			if (word.length() > MAX_STRING)
-				word = word.substring(0, MAX_STRING - 1);
-			if (context.length() > MAX_STRING)
-				context = context.substring(0, MAX_STRING - 1);
-			trainedWordsCount++;
-			i = V.searchVocab(wv, word);
-			if (i == -1) {
-				a = V.addWordToVocab(wv, word);
-				wv.vocab.get(a).cn = 1;
-			} else {
-				wv.vocab.get(i).cn++;
+	/** @return word and context vocabularies of the pairs of frequent words, from the exact counts of the workers */
+	private Vocabulary[] exactVocabularies(List<Worker> workers) {
+		// merge the raw word frequencies of the workers, then keep the pairs of frequent words only
+		WordCounter raw = workers.get(0).raw;
+		for (Worker worker : workers.subList(1, workers.size())) raw.merge(worker.raw);
+		WordCounter words = new WordCounter();
+		WordCounter contexts = new WordCounter();
+		long pairs = 0;
+		for (Worker worker : workers) {
+			trainedWordsCount += worker.filter(raw, words, contexts);
+			pairs += worker.pairs;
+		}
+		log.info(String.format("%d pairs extracted, %d pairs of words more frequent than %d", pairs, trainedWordsCount, MIN_FREQUENCY));
+		return new Vocabulary[] {words.toVocabulary(V), contexts.toVocabulary(V)};
+	}
+
+	/**
+	 * @return word and context vocabularies from the approximate counts of the workers, words and contexts built from
+	 * words estimated more frequent than MIN_FREQUENCY are kept with their counts over all pairs, frequent or not
+	 */
+	private Vocabulary[] approximateVocabularies(List<Worker> workers) {
+		Worker first = workers.get(0);
+		long pairs = 0;
+		for (Worker worker : workers) {
+			if (worker != first) {
+				first.approximateRaw.merge(worker.approximateRaw);
+				first.approximateWords.merge(worker.approximateWords);
+				first.approximateContexts.merge(worker.approximateContexts);
+			}
+			pairs += worker.pairs;
+		}
+		ApproximateCounter raw = first.approximateRaw;
+		Vocabulary wv = V.createVocabulary();
+		Vocabulary cv = V.createVocabulary();
+		first.approximateWords.forEach((word, count, error, other) -> {
+			if (raw.estimate(word) <= MIN_FREQUENCY) return;
+			V.addWordToVocab(wv, word);
+			wv.vocab.get(wv.vocabSize - 1).cn = count;
+			trainedWordsCount += count;
+		});
+		first.approximateContexts.forEach((context, count, error, other) -> {
+			if (raw.estimate(other) <= MIN_FREQUENCY) return;
+			V.addWordToVocab(cv, context);
+			cv.vocab.get(cv.vocabSize - 1).cn = count;
+		});
+		log.info(String.format("%d pairs extracted, counted approximately in %d bytes", pairs, memoryBudget));
+		for (ApproximateCounter counter : Arrays.asList(raw, first.approximateWords, first.approximateContexts)) {
+			log.info(String.format("%s counts: upper bounds, at most %d above the true counts (all words counted more are listed), sketch error at most %d with probability %.3f",
+					counter == raw ? "Raw word" : counter == first.approximateWords ? "Word" : "Context",
+					counter.listErrorBound(), counter.sketchErrorBound(), counter.confidence()));
+		}
+		return new Vocabulary[] {wv, cv};
+	}
+
+	/**
+	 * merge the spilled pair records of the workers into the word and context vocabularies, then sort these by count
+	 * through the spill directory as well, writing wv and cv as they are merged
+	 */
+	private void mergeSpilledVocabularies(List<Worker> workers, File spillDirectory) throws IOException {
+		WordCounter raw = workers.get(0).raw;
+		for (Worker worker : workers.subList(1, workers.size())) raw.merge(worker.raw);
+		List<ExternalCounter> words = new ArrayList<>();
+		List<ExternalCounter> contexts = new ArrayList<>();
+		long pairs = 0;
+		int runs = 0;
+		for (Worker worker : workers) {
+			words.add(worker.spilledWords);
+			contexts.add(worker.spilledContexts);
+			pairs += worker.pairs;
+			runs += worker.spilledWords.runs() + worker.spilledContexts.runs();
+		}
+		int maxEntries = (int) Math.min(memoryBudget / ExternalCounter.ENTRY_BYTES, Integer.MAX_VALUE);
+		TokenCounts wv = new TokenCounts(raw, new ExternalCounter(spillDirectory, "wv", maxEntries));
+		ExternalCounter.merge(words, wv);
+		trainedWordsCount += wv.kept;
+		log.info(String.format("%d pairs extracted, %d pairs of words more frequent than %d, %d runs spilled during extraction",
+				pairs, trainedWordsCount, MIN_FREQUENCY, runs));
+		long wvSize = wv.save(directory.concat("/wv"));
+		TokenCounts cv = new TokenCounts(raw, new ExternalCounter(spillDirectory, "cv", maxEntries));
+		ExternalCounter.merge(contexts, cv);
+		long cvSize = cv.save(directory.concat("/cv"));
+		log.info(String.format("Count and filter process finished. Minimum count: %s", MIN_COUNT));
+		log.info(String.format("Word vocabulary size: %s\nContext vocabulary size: %s\nWords in train file: %s",
+				wvSize, cvSize, trainedWordsCount));
+	}
+
+	/**
+	 * Sums the spilled (token, word, embedded word) records of each token over the pairs of frequent words, the records
+	 * being visited in token order, and sorts the tokens counted at least MIN_COUNT times by decreasing count
+	 */
+	private class TokenCounts implements ExternalCounter.Visitor {
+		private final WordCounter raw;
+		/** tokens keyed by their inverted zero-padded count, so that the key order is the decreasing count order */
+		private final ExternalCounter byCount;
+		private String token;
+		private long count;
+		/** number of pairs kept */
+		long kept;
+
+		TokenCounts(WordCounter raw, ExternalCounter byCount) {
+			this.raw = raw;
+			this.byCount = byCount;
+		}
+
+		@Override
+		public void visit(String key, long n) throws IOException {
+			String[] fields = key.split("\t");
+			if (!fields[0].equals(token)) {
+				flush();
+				token = fields[0];
+			}
+			if (frequent(fields[1]) && frequent(fields[2])) {
+				count += n;
+				kept += n;
+			}
+		}
+
+		private boolean frequent(String word) {
+			int r = raw.indexOf(word);
+			return r >= 0 && raw.count(r) > MIN_FREQUENCY;
+		}
+
+		private void flush() throws IOException {
+			if (token != null && count > 0 && count >= MIN_COUNT) {
+				byCount.add(String.format("%019d\t%s", Long.MAX_VALUE - count, token), count);
+			}
+			count = 0;
+		}
+
+		/** write the tokens sorted by decreasing count to the vocabulary file, @return number of tokens */
+		long save(String vocabFilePath) throws IOException {
+			flush();
+			long[] size = new long[1];
+			try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(vocabFilePath)), 1 << 20)) {
+				ExternalCounter.merge(Collections.singletonList(byCount), (key, n) -> {
+					bw.write(key.substring(key.indexOf('\t') + 1) + " " + n + "\n");
+					size[0]++;
+				});
 			}
-			i = V.searchVocab(cv, context);
-			if (i == -1) {
-				a = V.addWordToVocab(cv, context);
-				cv.vocab.get(a).cn = 1;
-			} else {
-				cv.vocab.get(i).cn++;
+			return size[0];
+		}
+	}
+
+	/** delete the directory and the files left in it */
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) for (File file : files) file.delete();
+		directory.delete();
+	}
+
+	/** process the block in the calling thread without workers, queue it for the workers otherwise */
+	private void dispatch(List<String> block, List<Worker> workers, BlockingQueue<List<String>> queue, List<Future<Void>> futures)
+			throws IOException, InterruptedException, ExecutionException {
+		if (futures.isEmpty()) workers.get(0).process(block);
+		else put(queue, block, futures);
+	}
+
+	/** queue the block, rethrowing the failure of a worker instead of waiting for it forever */
+	private static void put(BlockingQueue<List<String>> queue, List<String> block, List<Future<Void>> futures)
+			throws InterruptedException, ExecutionException {
+		while (!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<Void> future : futures) if (future.isDone()) future.get();
+		}
+	}
+
+	/** append the shards to the output file and delete them */
+	private static void concatenate(List<File> shards, File output) throws IOException {
+		try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (File shard : shards) {
+				try (FileChannel in = FileChannel.open(shard.toPath(), StandardOpenOption.READ)) {
+					long position = 0, size = in.size();
+					while (position < size) position += in.transferTo(position, size - position, out);
+				}
+				Files.delete(shard.toPath());
 			}
-			V.ensureVocabSize(wv);
-			V.ensureVocabSize(cv);
 		}
 	}
 
-	/** @return (word, dependency_context) pairs */
-	private String extractDependency(List<Token> sent) {
-		StringBuilder sb = new StringBuilder();
+	/** Extraction worker, owns one shard of the output and the counts of the pairs it wrote */
+	private class Worker implements PairVisitor {
+		private final BufferedWriter writer;
+		/** raw, word and context counters of the approximate mode, null when counting exactly */
+		private final ApproximateCounter approximateRaw;
+		private final ApproximateCounter approximateWords;
+		private final ApproximateCounter approximateContexts;
+		/**
+		 * (token, word, embedded word) records of the pairs in the spilling mode, null otherwise: the token is the word
+		 * or context counted, the pair is kept if both words are frequent
+		 */
+		private final ExternalCounter spilledWords;
+		private final ExternalCounter spilledContexts;
+		/** raw frequencies of the words of the corpus */
+		private final WordCounter raw = new WordCounter(false);
+		/** ids of the words and contexts of the pairs, and the word each context was built from */
+		private final WordCounter words = new WordCounter(false);
+		private final WordCounter contexts = new WordCounter(false);
+		private int[] embedded = new int[1 << 10];
+		/** whether the word of each id was already counted more than MIN_FREQUENCY times by this worker */
+		private boolean[] knownFrequent = new boolean[1 << 10];
+		/** counts of the pairs not yet known to be kept, the counts of words and contexts holding those of the others */
+		private final PairCounter counts = new PairCounter();
+		private final StringBuilder sb = new StringBuilder();
+		private List<Token> sent = newSentence();
+		private long pairs;
+
+		Worker(File shard, long counterBudget, File spillDirectory, int index) throws IOException {
+			this.writer = new BufferedWriter(new FileWriter(shard), 1 << 20);
+			boolean approximate = counterBudget > 0 && spillDirectory == null;
+			this.approximateRaw = approximate ? ApproximateCounter.withBudget(counterBudget) : null;
+			this.approximateWords = approximate ? ApproximateCounter.withBudget(counterBudget) : null;
+			this.approximateContexts = approximate ? ApproximateCounter.withBudget(counterBudget) : null;
+			int maxEntries = (int) Math.min(counterBudget / ExternalCounter.ENTRY_BYTES, Integer.MAX_VALUE);
+			this.spilledWords = spillDirectory != null ? new ExternalCounter(spillDirectory, "words-" + index, maxEntries) : null;
+			this.spilledContexts = spillDirectory != null ? new ExternalCounter(spillDirectory, "contexts-" + index, maxEntries) : null;
+		}
+
+		Void consume(BlockingQueue<List<String>> queue) throws IOException, InterruptedException {
+			List<String> block;
+			while ((block = queue.take()) != END) process(block);
+			return null;
+		}
+
+		/** extract the sentences of the block, which ends on a sentence boundary */
+		void process(List<String> block) throws IOException {
+			for (String line : block) {
+				if (line.equals("")) {
+					if (sent.size() > 1) {
+						sb.setLength(0);
+						extractDependency(sent, this);
+						writer.write(sb.toString());
+					}
+					sent = newSentence();
+				} else {
+					String[] str = line.split("\t");
+					if (approximateRaw != null) approximateRaw.add(str[1].trim(), 1, null);
+					else raw.add(str[1].trim(), 1);
+					sent.add(token(str));
+				}
+			}
+		}
+
+		/** write the pair to the shard and count it */
+		@Override
+		public void visit(String word, String context, String other) throws IOException {
+			sb.append(word).append(" ").append(context).append("\n");
+			count(word, context, other);
+		}
+
+		/** count an extracted pair, the context being built from the other word of the dependency */
+		void count(String word, String context, String other) throws IOException {
+			pairs++;
+			if (spilledWords != null) {
+				spilledWords.add(truncate(word) + "\t" + word + "\t" + other, 1);
+				spilledContexts.add(truncate(context) + "\t" + word + "\t" + other, 1);
+				return;
+			}
+			if (approximateWords != null) {
+				approximateWords.add(truncate(word), 1, null);
+				approximateContexts.add(truncate(context), 1, other);
+				return;
+			}
+			int w = words.add(word, 0);
+			int c = contexts.add(context, 0);
+			if (c == embedded.length) embedded = Arrays.copyOf(embedded, c << 1);
+			if (c == contexts.size() - 1) embedded[c] = words.add(other, 0);
+			if (knownFrequent(w) && knownFrequent(embedded[c])) {
+				words.add(w, 1);
+				contexts.add(c, 1);
+			} else counts.add(w, c, 1);
+		}
+
+		/** @return true if the word of the id is counted more than MIN_FREQUENCY times by this worker, hence in the corpus */
+		private boolean knownFrequent(int id) {
+			if (id >= knownFrequent.length) knownFrequent = Arrays.copyOf(knownFrequent, Math.max(id + 1, knownFrequent.length << 1));
+			if (!knownFrequent[id]) {
+				int r = raw.indexOf(words.word(id));
+				knownFrequent[id] = r >= 0 && raw.count(r) > MIN_FREQUENCY;
+			}
+			return knownFrequent[id];
+		}
+
+		/**
+		 * add the pairs kept while extracting, then the counted pairs whose word and context word are more frequent than
+		 * MIN_FREQUENCY, to the word and context counts
+		 * @return number of pairs added
+		 */
+		long filter(WordCounter raw, WordCounter wordCounts, WordCounter contextCounts) {
+			boolean[] frequent = new boolean[words.size()];
+			for (int i = 0; i < frequent.length; i++) {
+				int r = raw.indexOf(words.word(i));
+				frequent[i] = r >= 0 && raw.count(r) > MIN_FREQUENCY;
+			}
+			long[] kept = new long[1];
+			for (int w = 0; w < words.size(); w++) {
+				if (words.count(w) == 0) continue;
+				wordCounts.add(truncate(words.word(w)), words.count(w));
+				kept[0] += words.count(w);
+			}
+			for (int c = 0; c < contexts.size(); c++) {
+				if (contexts.count(c) > 0) contextCounts.add(truncate(contexts.word(c)), contexts.count(c));
+			}
+			counts.forEach((w, c, n) -> {
+				if (!frequent[w] || !frequent[embedded[c]]) return;
+				wordCounts.add(truncate(words.word(w)), n);
+				contextCounts.add(truncate(contexts.word(c)), n);
+				kept[0] += n;
+			});
+			return kept[0];
+		}
+
+		void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	/** @return word cut to the longest length allowed */
+	private static String truncate(String word) {
+		return word.length() > MAX_STRING ? word.substring(0, MAX_STRING - 1) : word;
+	}
+
+	/** @return a new sentence holding the root token */
+	private static List<Token> newSentence() {
+		List<Token> sent = new ArrayList<>();
+		sent.add(new Token(0, "*root*", -1, "rroot"));
+		return sent;
+	}
+
+	/** @return token of the fields of a CoNLL line, its word and dependency lowercased */
+	private static Token token(String[] str) {
+		return new Token(Integer.parseInt(str[0]), str[1].toLowerCase(), Integer.parseInt(str[6]), str[7].toLowerCase());
+	}
+
+	/** Visitor of the extracted (word, dependency_context) pairs and of the other word each context was built from */
+	public interface PairVisitor {
+		void visit(String word, String context, String other) throws IOException;
+	}
+
+	/**
+	 * visit the (word, dependency_context) pairs of a CoNLL text made of complete sentences, e.g. parsed in memory by
+	 * {@link com.isaac.word2vecf.utils.ConllFileGenerator#parse}, in the order they would be written to dep.context
+	 */
+	public static void extract(String conll, PairVisitor visitor) throws IOException {
+		List<Token> sent = newSentence();
+		for (String line : conll.split("\n")) {
+			if (line.isEmpty()) {
+				if (sent.size() > 1) extractDependency(sent, visitor);
+				sent = newSentence();
+			} else sent.add(token(line.split("\t")));
+		}
+		if (sent.size() > 1) extractDependency(sent, visitor);
+	}
+
+	/** visit the (word, dependency_context) pairs of the sentence, frequent or not */
+	private static void extractDependency(List<Token> sent, PairVisitor visitor) throws IOException {
 		for (Token tok : sent) {
 			if (tok.getRelation() == -1) continue;
 			Token par = sent.get(tok.getRelation());
 			String m = tok.getWord();
 			String h;
-			if (!wordSet.contains(m))
-				continue;
 			String ref = tok.getDependency();
 			if (ref.equals("prep")) continue; // for english_SD model, if english_UD model is used, change to "adpmod"
 			if (ref.equals("pobj") && par.getIndex() != 0) { // for english_SD model, if english_UD model is used, change to "adpobj"
@@ -144,33 +529,11 @@ public class ExtractionImpl {
 				ref = par.getDependency().concat(":").concat(par.getWord());
 				h = ppar.getWord();
 			} else h = par.getWord();
-			if (!wordSet.contains(h)) continue;
-			sb.append(h).append(" ").append(ref).append("_").append(m).append("\n");
-			sb.append(m).append(" ").append(ref).append("I_").append(h).append("\n");
-		}
-		return sb.toString();
-	}
-
-	/** @return {@link ImmutableSet} of word vocabulary */
-	private ImmutableSet<String> buildWordVocab(String filename) {
-		Map<String, AtomicInteger> map = new HashMap<>(2000000);
-		try {
-			BufferedReader reader = new BufferedReader(new FileReader(filename));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				if (line.isEmpty()) continue;
-				String str = line.split("\t")[1].trim();
-				if (map.containsKey(str)) map.get(str).incrementAndGet();
-				else map.put(str, new AtomicInteger(1));
-			}
-			reader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			String context = ref.concat("_").concat(m);
+			String inverse = ref.concat("I_").concat(h);
+			visitor.visit(h, context, m);
+			visitor.visit(m, inverse, h);
 		}
-		HashSet<String> wordSet = map.entrySet().stream().filter((Map.Entry<String, AtomicInteger> e) -> e.getValue().get() > MIN_FREQUENCY)
-				.sorted((e1, e2) -> Integer.compare(e2.getValue().get(), e1.getValue().get()))
-				.map(Map.Entry::getKey).collect(Collectors.toCollection(HashSet::new));
-		return ImmutableSet.copyOf(wordSet);
 	}
 
 }
@@ -0,0 +1,96 @@
+package com.isaac.word2vecf.vocabulary;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, read-optimized form of a {@link Vocabulary}, used once training starts. Words and counts are held in
+ * flat arrays, and the open addressing table interleaves the hash of each word with its index, so that a probe
+ * compares hashes within one cache line and only calls equals on a hash match.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+public final class FrozenVocabulary {
+	private static final double LOAD_FACTOR = 0.5;
+
+	private final String[] words;
+	private final long[] counts;
+	private final long wordCount;
+	/** hash of the word at 2 * slot, index + 1 at 2 * slot + 1, 0 if the slot is empty */
+	private final int[] table;
+	private final int mask;
+
+	FrozenVocabulary(Vocabulary v) {
+		this(words(v), counts(v));
+	}
+
+	private FrozenVocabulary(String[] words, long[] counts) {
+		int size = words.length;
+		this.words = words;
+		this.counts = counts;
+		long total = 0;
+		for (long count : counts) total += count;
+		this.wordCount = total;
+		int slots = 2;
+		while (slots * LOAD_FACTOR < size) slots <<= 1;
+		this.mask = slots - 1;
+		this.table = new int[2 * slots];
+		for (int i = 0; i < size; i++) {
+			int hash = VocabFunctions.hash(words[i]);
+			int slot = hash & mask;
+			while (table[2 * slot + 1] != 0) slot = (slot + 1) & mask;
+			table[2 * slot] = hash;
+			table[2 * slot + 1] = i + 1;
+		}
+	}
+
+	/**
+	 * @return vocabulary of the words of a model, in the same order and without counts, to index its rows; a word
+	 * listed twice is found at its first index, as by {@link List#indexOf}
+	 */
+	public static FrozenVocabulary of(List<String> words) {
+		return new FrozenVocabulary(words.toArray(new String[0]), new long[words.size()]);
+	}
+
+	private static String[] words(Vocabulary v) {
+		String[] words = new String[v.vocabSize];
+		for (int i = 0; i < words.length; i++) words[i] = v.vocab.get(i).word;
+		return words;
+	}
+
+	private static long[] counts(Vocabulary v) {
+		long[] counts = new long[v.vocabSize];
+		for (int i = 0; i < counts.length; i++) counts[i] = v.vocab.get(i).cn;
+		return counts;
+	}
+
+	/** @return index of the word, -1 if it is not in the vocabulary */
+	public int indexOf(String word) {
+		int hash = VocabFunctions.hash(word);
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int index = table[2 * slot + 1];
+			if (index == 0) return -1;
+			if (table[2 * slot] == hash && word.equals(words[index - 1])) return index - 1;
+		}
+	}
+
+	/** @return number of words */
+	public int size() { return words.length; }
+
+	/** @return word at the index */
+	public String word(int index) { return words[index]; }
+
+	/** @return count of the word at the index */
+	public long count(int index) { return counts[index]; }
+
+	/** @return sum of the counts of all words */
+	public long wordCount() { return wordCount; }
+
+	/** @return words in index order */
+	public List<String> wordSet() {
+		return Collections.unmodifiableList(Arrays.asList(words));
+	}
+}
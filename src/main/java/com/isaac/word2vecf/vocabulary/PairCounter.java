@@ -0,0 +1,83 @@
+package com.isaac.word2vecf.vocabulary;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing counter of (word id, context id) pairs, keyed by both ids packed into one long, so that a pair
+ * costs two longs of the table and no objects. Not thread safe, each worker owns its own counter.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class PairCounter {
+	private static final double LOAD_FACTOR = 0.7;
+	private static final long EMPTY = -1L;
+
+	private long[] keys;
+	private long[] counts;
+	private int size;
+	private int mask;
+
+	PairCounter() {
+		allocate(1 << 10);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		this.counts = new long[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/** add n to the count of the pair */
+	void add(int word, int context, long n) {
+		long key = ((long) word << 32) | (context & 0xFFFFFFFFL);
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				counts[slot] += n;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		counts[slot] = n;
+		if (++size > keys.length * LOAD_FACTOR) rehash();
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		long[] oldCounts = counts;
+		allocate(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == EMPTY) continue;
+			int slot = slot(oldKeys[i]);
+			while (keys[slot] != EMPTY) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+
+	/** @return number of distinct pairs */
+	int size() {
+		return size;
+	}
+
+	/** Visitor of the counted pairs */
+	interface Visitor {
+		void visit(int word, int context, long count);
+	}
+
+	/** visit all counted pairs */
+	void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) visitor.visit((int) (keys[i] >>> 32), (int) keys[i], counts[i]);
+		}
+	}
+}
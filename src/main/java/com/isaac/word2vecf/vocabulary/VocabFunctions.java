@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.stream.Collectors;
 
 import com.isaac.word2vecf.vocabulary.Vocabulary.VocabWord;
@@ -18,23 +19,51 @@ import com.isaac.word2vecf.vocabulary.Vocabulary.VocabWord;
 @SuppressWarnings("all")
 public class VocabFunctions {
 
-	private static final int vocabHashSize = 30000000; // Maximum 30*0.7=21M words in the vocabulary
+	/** Open addressing table sized to a power of two, grown when more than LOAD_FACTOR of it is used */
+	private static final int INITIAL_HASH_SIZE = 1 << 10;
+	private static final double LOAD_FACTOR = 0.7;
+	private static final int MAX_VOCAB_SIZE = 21000000; // Maximum 21M words in the vocabulary
 	private static final int MAX_STRING = 100;
-	private static final int MAX_INTEGER = Integer.MAX_VALUE;
 	private static int minReduce = 1;
 
-	/** @return hash value of a word */
-	private int getWordHash(String word) {
-		return (word.hashCode() & MAX_INTEGER) % vocabHashSize;
+	/** @return hash value of a word, spread so that the low bits used as slot depend on all bits of its hash code */
+	static int hash(String word) {
+		int h = word.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** @return slot of a word in the hash table of the vocabulary */
+	private int getWordHash(Vocabulary v, String word) {
+		return hash(word) & (v.vocabHash.length - 1);
 	}
 
 	/** @return position of a word in the vocabulary, -1 if the word not found */
 	public int searchVocab (Vocabulary v, String word) {
-		int hash = getWordHash(word);
+		int mask = v.vocabHash.length - 1;
+		int hash = getWordHash(v, word);
 		while (true) {
 			if (v.vocabHash[hash] == -1) return -1;
 			if (word.equals(v.vocab.get(v.vocabHash[hash]).word)) return v.vocabHash[hash];
-			hash = (hash + 1) % vocabHashSize;
+			hash = (hash + 1) & mask;
+		}
+	}
+
+	/** @return smallest power of two table keeping the load of size words under LOAD_FACTOR */
+	private static int hashSizeFor (int size) {
+		int n = INITIAL_HASH_SIZE;
+		while (n * LOAD_FACTOR < size + 1) n <<= 1;
+		return n;
+	}
+
+	/** Rebuild the hash table of the vocabulary with the given size */
+	private void rehash (Vocabulary v, int hashSize) {
+		v.vocabHash = new int[hashSize];
+		Arrays.fill(v.vocabHash, -1);
+		int mask = hashSize - 1;
+		for (int a = 0; a < v.vocabSize; a++) {
+			int hash = getWordHash(v, v.vocab.get(a).word);
+			while (v.vocabHash[hash] != -1) hash = (hash + 1) & mask;
+			v.vocabHash[hash] = a;
 		}
 	}
 
@@ -48,15 +77,19 @@ public class VocabFunctions {
 		v.vocab.add(vocab);
 		v.vocabSize++;
 		if (v.vocabSize + 2 >= v.vocabMaxSize) v.vocabMaxSize = v.vocabMaxSize + 1000;
-		hash = getWordHash(word);
-		while (v.vocabHash[hash] != -1) hash = (hash + 1) % vocabHashSize;
+		if (v.vocabSize > v.vocabHash.length * LOAD_FACTOR) {
+			rehash(v, v.vocabHash.length << 1);
+			return v.vocabSize - 1;
+		}
+		int mask = v.vocabHash.length - 1;
+		hash = getWordHash(v, word);
+		while (v.vocabHash[hash] != -1) hash = (hash + 1) & mask;
 		v.vocabHash[hash] = v.vocabSize - 1;
 		return v.vocabSize - 1;
 	}
 
 	/** Sorts the vocabulary by frequency using word counts */
 	public void sortAndReduceVocab (Vocabulary v, int min_count) {
-		int hash;
 		v.vocab = v.vocab.stream().sorted((e1, e2) -> (int) (e2.cn - e1.cn)).collect(Collectors.toList());
 		int size = v.vocabSize;
 		v.wordCount = 0;
@@ -67,17 +100,9 @@ public class VocabFunctions {
 				break;
 			}
 		}
-		// initialize hash table
-		for (int a = 0; a < vocabHashSize; a++) {
-			v.vocabHash[a] = -1;
-		}
-		// Hash will be recomputed, as after the sorting it is not actual
-		for (int a = 0; a < v.vocabSize; a++) {
-			hash = getWordHash(v.vocab.get(a).word);
-			while (v.vocabHash[hash] != -1) hash = (hash + 1) % vocabHashSize;
-			v.vocabHash[hash] = a;
-			v.wordCount = v.wordCount + v.vocab.get(a).cn;
-		}
+		// Hash will be recomputed, as after the sorting it is not actual, in a table fitting the reduced vocabulary
+		rehash(v, hashSizeFor(v.vocabSize));
+		for (int a = 0; a < v.vocabSize; a++) v.wordCount = v.wordCount + v.vocab.get(a).cn;
 	}
 
 	/** @return {@link Vocabulary} Creates the vocabulary */
@@ -85,9 +110,9 @@ public class VocabFunctions {
 		Vocabulary v = new Vocabulary();
 		v.vocabMaxSize = 1000;
 		v.vocabSize = 0;
-		v.vocab = new ArrayList<>(2000000);
-		v.vocabHash = new int[vocabHashSize];
-		for (int a = 0; a < vocabHashSize; a++) v.vocabHash[a] = -1;
+		v.vocab = new ArrayList<>();
+		v.vocabHash = new int[INITIAL_HASH_SIZE];
+		Arrays.fill(v.vocabHash, -1);
 		return v;
 	}
 
@@ -105,7 +130,6 @@ public class VocabFunctions {
 
 	/** Reduce the vocabulary by removing infrequent tokens */
 	public void reduceVocab (Vocabulary v) {
-		int hash;
 		v.vocab = v.vocab.stream().sorted((e1, e2) -> (int) (e2.cn - e1.cn)).collect(Collectors.toList());
 		int size = v.vocabSize;
 		v.wordCount = 0;
@@ -118,19 +142,12 @@ public class VocabFunctions {
 			}
 			index++;
 		}
-		for (int i = 0; i < vocabHashSize; i++) {
-			v.vocabHash[i] = -1;
-		}
-		for (int i = 0; i < v.vocabSize; i++) {
-			hash = getWordHash(v.vocab.get(i).word);
-			while (v.vocabHash[hash] != -1) hash = (hash + 1) % vocabHashSize;
-			v.vocabHash[hash] = i;
-		}
+		rehash(v, hashSizeFor(v.vocabSize));
 		minReduce++;
 	}
 
 	public void ensureVocabSize (Vocabulary vocab) {
-		if (vocab.vocabSize > vocabHashSize * 0.7) reduceVocab(vocab);
+		if (vocab.vocabSize > MAX_VOCAB_SIZE) reduceVocab(vocab);
 	}
 
 }
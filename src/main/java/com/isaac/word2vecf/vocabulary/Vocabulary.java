@@ -23,6 +23,11 @@ public class Vocabulary {
 		return list;
 	}
 
+	/** @return {@link FrozenVocabulary} snapshot of this vocabulary, to be used for lookups once it stops changing */
+	public FrozenVocabulary freeze() {
+		return new FrozenVocabulary(this);
+	}
+
 	public class VocabWord {
 		public long cn;
 		public String word;
@@ -0,0 +1,134 @@
+package com.isaac.word2vecf.vocabulary;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing String to long count map over parallel primitive arrays, used by the extraction workers to count
+ * words and contexts without boxing or sharing. Words get dense ids in order of first appearance, the table only
+ * holds the hash and id + 1 of each word. Not thread safe, each worker owns its own counters.
+ *
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ */
+class WordCounter {
+	private static final double LOAD_FACTOR = 0.7;
+	/** Same cap as {@link VocabFunctions#ensureVocabSize(Vocabulary)}, infrequent entries are pruned beyond it */
+	private static final int MAX_SIZE = 21000000;
+
+	/** whether infrequent words may be pruned, which reassigns the ids */
+	private final boolean prune;
+	private String[] words = new String[1 << 10];
+	private long[] counts = new long[1 << 10];
+	private int size;
+	/** hash of the word at 2 * slot, id + 1 at 2 * slot + 1, 0 if the slot is empty */
+	private int[] table;
+	private int mask;
+	private int minReduce = 1;
+
+	WordCounter() {
+		this(true);
+	}
+
+	WordCounter(boolean prune) {
+		this.prune = prune;
+		this.table = new int[2 << 10];
+		this.mask = (1 << 10) - 1;
+	}
+
+	/** @return id of the word after adding n to its count, -1 if pruning dropped it */
+	int add(String word, long n) {
+		int hash = VocabFunctions.hash(word);
+		int slot = hash & mask;
+		for (int id; (id = table[2 * slot + 1]) != 0; slot = (slot + 1) & mask) {
+			if (table[2 * slot] == hash && words[id - 1].equals(word)) {
+				counts[id - 1] += n;
+				return id - 1;
+			}
+		}
+		if (size == words.length) {
+			words = Arrays.copyOf(words, size << 1);
+			counts = Arrays.copyOf(counts, size << 1);
+		}
+		words[size] = word;
+		counts[size] = n;
+		table[2 * slot] = hash;
+		table[2 * slot + 1] = ++size;
+		if (size > (mask + 1) * LOAD_FACTOR) rehash((mask + 1) << 1);
+		if (prune && size > MAX_SIZE) {
+			reduce(minReduce++);
+			return indexOf(word);
+		}
+		return size - 1;
+	}
+
+	/** add n to the count of the id */
+	void add(int id, long n) {
+		counts[id] += n;
+	}
+
+	/** @return id of the word, -1 if it was not counted */
+	int indexOf(String word) {
+		int hash = VocabFunctions.hash(word);
+		for (int slot = hash & mask, id; (id = table[2 * slot + 1]) != 0; slot = (slot + 1) & mask) {
+			if (table[2 * slot] == hash && words[id - 1].equals(word)) return id - 1;
+		}
+		return -1;
+	}
+
+	/** @return word of the id */
+	String word(int id) {
+		return words[id];
+	}
+
+	/** @return count of the id */
+	long count(int id) {
+		return counts[id];
+	}
+
+	/** @return number of distinct words */
+	int size() {
+		return size;
+	}
+
+	/** add all counts of the other counter */
+	void merge(WordCounter other) {
+		for (int i = 0; i < other.size; i++) add(other.words[i], other.counts[i]);
+	}
+
+	/** rebuild the table with the given number of slots */
+	private void rehash(int slots) {
+		table = new int[2 * slots];
+		mask = slots - 1;
+		for (int i = 0; i < size; i++) {
+			int hash = VocabFunctions.hash(words[i]);
+			int slot = hash & mask;
+			while (table[2 * slot + 1] != 0) slot = (slot + 1) & mask;
+			table[2 * slot] = hash;
+			table[2 * slot + 1] = i + 1;
+		}
+	}
+
+	/** drop the words counted less than min */
+	private void reduce(long min) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (counts[i] < min) continue;
+			words[kept] = words[i];
+			counts[kept++] = counts[i];
+		}
+		Arrays.fill(words, kept, size, null);
+		size = kept;
+		rehash(mask + 1);
+	}
+
+	/** @return {@link Vocabulary} holding the counted words, unsorted */
+	Vocabulary toVocabulary(VocabFunctions V) {
+		Vocabulary v = V.createVocabulary();
+		for (int i = 0; i < size; i++) {
+			int a = V.addWordToVocab(v, words[i]);
+			v.vocab.get(a).cn = counts[i];
+		}
+		return v;
+	}
+}
@@ -13,7 +13,7 @@ import com.isaac.word2vecf.utils.ConllFileGenerator;
 public class ConllFileGenerationExample {
 	public static void main (String[] args) {
 		String filePath = "<path to the raw corpus>";
-		ConllFileGenerator.generate(filePath);
+		ConllFileGenerator.generate(filePath, Runtime.getRuntime().availableProcessors());
 		System.out.println("CoNLL format file is generated, located at the same directory as train file.");
 	}
 }
@@ -0,0 +1,37 @@
+package com.isaac.examples.word2vecf;
+
+import java.util.List;
+
+import com.isaac.word2vecf.QuantizedWord2Vec;
+import com.isaac.word2vecf.Word2Vec;
+import com.isaac.word2vecf.utils.WordVectorSerializer;
+import javafx.util.Pair;
+
+/**
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ *
+ * Compress a model by product quantization once, then serve nearest words from the compressed file: 300 dimensions in
+ * 50 subspaces take 50 bytes per word instead of 1200, the full precision vectors saved with them are only mapped to
+ * re-rank the best candidates.
+ *
+ */
+public class QuantizedWord2VecExample {
+
+	public static void main(String[] args) {
+		String filename = "/Users/zhanghao/Documents/Files/GoogleNews-vectors-negative300.bin";
+		String quantizedFile = filename + ".pq";
+		Word2Vec w2v = WordVectorSerializer.loadWord2VecModel(filename, true);
+		QuantizedWord2Vec quantized = QuantizedWord2Vec.quantize(w2v, 50);
+		WordVectorSerializer.saveQuantizedModel(quantizedFile, quantized, true);
+		// on a serving replica
+		QuantizedWord2Vec model = WordVectorSerializer.loadQuantizedModel(quantizedFile);
+		model.setRerank(100);
+		List<Pair<String, Double>> list = model.wordsNearest("kill", 10);
+		for (Pair<String, Double> aList : list) {
+			System.out.println(aList.getKey() + "\t" + aList.getValue());
+		}
+	}
+
+}
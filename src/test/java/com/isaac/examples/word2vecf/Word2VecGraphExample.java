@@ -0,0 +1,49 @@
+package com.isaac.examples.word2vecf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.isaac.word2vecf.Word2Vec;
+import com.isaac.word2vecf.search.HnswIndex;
+import com.isaac.word2vecf.utils.WordVectorSerializer;
+import javafx.util.Pair;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ *
+ * Approximate nearest words through a HNSW graph saved next to the model, and its recall against the exact scan.
+ *
+ */
+public class Word2VecGraphExample {
+
+	public static void main(String[] args) throws IOException {
+		String filename = "/Users/zhanghao/Documents/Files/GoogleNews-vectors-negative300.bin";
+		String graphFile = filename + ".hnsw";
+		Word2Vec w2v = WordVectorSerializer.loadWord2VecModel(filename, true);
+		HnswIndex graph;
+		if (new File(graphFile).exists()) {
+			graph = w2v.loadWordGraph(graphFile);
+		} else {
+			graph = w2v.buildWordGraph(16, 200);
+			graph.save(graphFile);
+		}
+		graph.setEfSearch(100);
+		List<Pair<String, Double>> list = w2v.wordsNearest("kill", 10);
+		for (Pair<String, Double> aList : list) {
+			System.out.println(aList.getKey() + "\t" + aList.getValue());
+		}
+		// recall@10 of 1000 words of the vocabulary
+		INDArray queries = Nd4j.create(1000, w2v.dimension());
+		for (int i = 0; i < 1000; i++) queries.putRow(i, w2v.getWordVectors().getRow(i * (w2v.wordVocabSize() / 1000)));
+		for (int ef : new int[] {10, 50, 100, 200}) {
+			graph.setEfSearch(ef);
+			System.out.println("efSearch " + ef + "\trecall@10 " + w2v.wordGraphRecall(queries, 10));
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package com.isaac.examples.word2vecf;
+
+import com.isaac.word2vecf.Word2Vecf;
+import com.isaac.word2vecf.Word2VecfPipeline;
+import com.isaac.word2vecf.Word2VecfTrainerBuilder;
+import com.isaac.word2vecf.utils.WordVectorSerializer;
+
+/**
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ *
+ * Parse, extract and train in one pass over the raw corpus, no CoNLL or dependency context file is written.
+ *
+ */
+public class Word2VecfPipelineExample {
+	public static void main (String[] args) {
+		String rawFile = "<path to the raw corpus>";
+		Word2Vecf w2vf = Word2VecfPipeline.pipeline()
+				.useParserThreads(Runtime.getRuntime().availableProcessors())
+				.sampleVocabularies(100000)
+				.setMinCount(5)
+				.train(rawFile, Word2VecfTrainerBuilder.trainer()
+						.setLayerSize(300)
+						.setNumIterations(5)
+						.useNumThreads(4)
+						.useNegativeSamples(15));
+		WordVectorSerializer.saveWord2VecfToBinary("<path to store word vectors>", "<path to store context vectors>", w2vf);
+	}
+}
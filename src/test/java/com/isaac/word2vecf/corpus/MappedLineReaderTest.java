@@ -0,0 +1,69 @@
+package com.isaac.word2vecf.corpus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by zhanghao on 18/10/26.
+ * @author  ZHANG HAO
+ * email: isaac.changhau@gmail.com
+ *
+ * Reads a file of multi-byte UTF-8 lines, and of a raw 0xFF byte, split into shards and mapped in segments of a few
+ * bytes, and checks that the shards together give back every line once and whole.
+ *
+ */
+public class MappedLineReaderTest {
+
+	public static void main(String[] args) throws IOException {
+		List<byte[]> lines = new ArrayList<>();
+		String[] words = {"na\u00efve", "caf\u00e9", "\u65e5\u672c\u8a9e", "\u0395\u03bb\u03bb\u03b7\u03bd\u03b9\u03ba\u03ac", "\u00ff", "emoji\ud83d\ude00", "plain"};
+		for (int i = 0; i < 200; i++) {
+			String line = words[i % words.length] + " nsubj_" + words[(i * 3 + 1) % words.length] + (i % 5 == 0 ? "\r" : "");
+			lines.add(line.getBytes(StandardCharsets.UTF_8));
+		}
+		lines.add(new byte[] {'x', (byte) 0xFF, ' ', (byte) 0xFF, 'y'});
+		lines.add(new byte[0]);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] line : lines) {
+			out.write(line);
+			out.write('\n');
+		}
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), out.toByteArray());
+		long size = file.length();
+		for (int shards : new int[] {1, 2, 3, 7, 16}) {
+			for (long segmentSize : new long[] {1, 3, 7, 64, size}) {
+				List<byte[]> read = new ArrayList<>();
+				for (int shard = 0; shard < shards; shard++) {
+					long end = shard == shards - 1 ? size : size / shards * (shard + 1);
+					try (MappedLineReader reader = new MappedLineReader(file.getPath(), size / shards * shard, end, segmentSize)) {
+						int length;
+						while ((length = reader.readLine()) >= 0) read.add(Arrays.copyOf(reader.line(), length));
+					}
+				}
+				check(lines, read, shards, segmentSize);
+			}
+		}
+		System.out.println("MappedLineReader: all lines read whole in every shard and segment layout");
+	}
+
+	private static void check(List<byte[]> expected, List<byte[]> read, int shards, long segmentSize) {
+		if (read.size() != expected.size())
+			throw new IllegalStateException(String.format("%d shards, segments of %d bytes: %d lines read, %d expected", shards, segmentSize, read.size(), expected.size()));
+		for (int i = 0; i < read.size(); i++) {
+			byte[] line = expected.get(i);
+			// the reader drops the carriage return before the line separator
+			if (line.length > 0 && line[line.length - 1] == '\r') line = Arrays.copyOf(line, line.length - 1);
+			if (!Arrays.equals(line, read.get(i)))
+				throw new IllegalStateException(String.format("%d shards, segments of %d bytes: line %d is \"%s\", expected \"%s\"", shards, segmentSize, i,
+						new String(read.get(i), StandardCharsets.UTF_8), new String(line, StandardCharsets.UTF_8)));
+		}
+	}
+}